@@ -0,0 +1,60 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.stuartwarren.metrics.opentsdb.DecimalFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares formatting the kind of values a timer reports with {@link DecimalFormatter} and with
+ * {@code String.format("%2.2f", v)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecimalFormattingBenchmark {
+    private final double[] values = new double[1024];
+
+    private DecimalFormatter formatter;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * Math.pow(10, random.nextInt(7));
+        }
+        formatter = new DecimalFormatter(2);
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        return String.format(Locale.US, "%2.2f", value());
+    }
+
+    @Benchmark
+    public void decimalFormatter(Blackhole blackhole) {
+        blackhole.consume(formatter.format(value()));
+        blackhole.consume(formatter.bytes());
+    }
+
+    private double value() {
+        next = (next + 1) & (values.length - 1);
+        return values[next];
+    }
+}
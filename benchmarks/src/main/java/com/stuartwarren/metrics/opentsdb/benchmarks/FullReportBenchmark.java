@@ -0,0 +1,55 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.stuartwarren.metrics.opentsdb.OpenTSDB;
+import com.stuartwarren.metrics.opentsdb.OpenTSDBReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole report of registries of increasing size, including the registry's own work of
+ * collecting the metrics, with lines discarded by the transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FullReportBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    public int metrics;
+
+    private OpenTSDBReporter reporter;
+
+    @Setup
+    public void setUp() {
+        final MetricRegistry registry = SyntheticRegistry.of(metrics);
+        reporter = OpenTSDBReporter.forRegistry(registry)
+                                   .withTag("host", "web01")
+                                   .withNameCacheSize(metrics)
+                                   .build(new OpenTSDB(new NullTransport()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.stop();
+    }
+
+    @Benchmark
+    public void report() {
+        reporter.report();
+    }
+}
@@ -0,0 +1,104 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.stuartwarren.metrics.opentsdb.LineEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares encoding the lines of one timer, the widest metric, through {@link LineEncoder} with
+ * the {@code String.format} and {@link Writer} path the reporter used before it.
+ * <p>
+ * Run with {@code -prof gc} to compare allocation rates as well as throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineEncodingBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+    private static final String[] SUFFIXES = { "max", "mean", "min", "stddev", "p50", "p75", "p95",
+                                               "p98", "p99", "p999", "m1_rate", "m5_rate",
+                                               "m15_rate", "mean_rate" };
+
+    private final double[] values = new double[SUFFIXES.length];
+
+    private Writer writer;
+    private LineEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1234.5678 / (i + 1);
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(NullOutputStream.INSTANCE, UTF_8));
+        encoder = new LineEncoder();
+    }
+
+    @Benchmark
+    public void stringFormat() throws IOException {
+        final long timestamp = System.currentTimeMillis() / 1000;
+        writer.write(line("prefix", "com.example.Service.requests", "count",
+                          Long.toString(1000L), timestamp));
+        for (int i = 0; i < SUFFIXES.length; i++) {
+            writer.write(line("prefix", "com.example.Service.requests", SUFFIXES[i],
+                              String.format(Locale.US, "%2.2f", values[i]), timestamp));
+        }
+        writer.flush();
+    }
+
+    @Benchmark
+    public void lineEncoder() throws IOException {
+        final long timestamp = System.currentTimeMillis() / 1000;
+        encoder.line("prefix", "com.example.Service.requests", "count", timestamp, 1000L,
+                     "host=a");
+        for (int i = 0; i < SUFFIXES.length; i++) {
+            encoder.line("prefix", "com.example.Service.requests", SUFFIXES[i], timestamp,
+                          values[i], "host=a");
+        }
+        encoder.writeTo(NullOutputStream.INSTANCE);
+    }
+
+    private static String line(String prefix, String name, String suffix, String value,
+                               long timestamp) {
+        return sanitize(MetricRegistry.name(prefix, name, suffix)) + ' ' + timestamp + ' ' +
+                sanitize(value) + " host=a" + '\n';
+    }
+
+    private static String sanitize(String s) {
+        return WHITESPACE.matcher(s).replaceAll("-");
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
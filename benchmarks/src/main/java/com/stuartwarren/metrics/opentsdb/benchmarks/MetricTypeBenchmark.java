@@ -0,0 +1,54 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.stuartwarren.metrics.opentsdb.OpenTSDB;
+import com.stuartwarren.metrics.opentsdb.OpenTSDBReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reporting a single metric of each type, from taking its values to handing the
+ * encoded lines to the transport, which shows the cost each type adds to a report.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricTypeBenchmark {
+    @Param({ "gauge", "counter", "histogram", "meter", "timer" })
+    public String type;
+
+    private OpenTSDBReporter reporter;
+
+    @Setup
+    public void setUp() {
+        final MetricRegistry registry = SyntheticRegistry.ofOne(type);
+        reporter = OpenTSDBReporter.forRegistry(registry)
+                                   .withTag("host", "web01")
+                                   .build(new OpenTSDB(new NullTransport()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.stop();
+    }
+
+    @Benchmark
+    public void report() {
+        reporter.report();
+    }
+}
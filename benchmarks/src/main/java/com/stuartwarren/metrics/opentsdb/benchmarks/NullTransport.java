@@ -0,0 +1,41 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.stuartwarren.metrics.opentsdb.Transport;
+
+/**
+ * A {@link Transport} which discards everything written to it, so benchmarks measure the cost of
+ * producing lines rather than of sending them.
+ */
+public class NullTransport extends Transport {
+    private boolean connected;
+
+    @Override
+    public void connect() {
+        connected = true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void write(int b) {
+        bytesSent++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        bytesSent += len;
+    }
+
+    @Override
+    public void flush() {
+        packetsSent++;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+}
@@ -0,0 +1,81 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.stuartwarren.metrics.opentsdb.OpenTSDB;
+import com.stuartwarren.metrics.opentsdb.OpenTSDBReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a report of many timers, snapshotted on the reporting thread ({@code threads = 0}) and
+ * in parallel on increasing numbers of threads, to show how snapshotting scales with cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelSnapshotBenchmark {
+    @Param({ "0", "1", "2", "4", "8" })
+    public int threads;
+
+    @Param({ "10000" })
+    public int timerCount;
+
+    private final SortedMap<String, Timer> timers = new TreeMap<String, Timer>();
+    private final SortedMap<String, Gauge> gauges = new TreeMap<String, Gauge>();
+    private final SortedMap<String, Counter> counters = new TreeMap<String, Counter>();
+    private final SortedMap<String, Histogram> histograms = new TreeMap<String, Histogram>();
+    private final SortedMap<String, Meter> meters = new TreeMap<String, Meter>();
+
+    private OpenTSDBReporter reporter;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        for (int i = 0; i < timerCount; i++) {
+            final Timer timer = new Timer();
+            for (int j = 0; j < 1028; j++) {
+                timer.update(random.nextInt(1000000), TimeUnit.MICROSECONDS);
+            }
+            timers.put("com.example.Service" + i + ".requests", timer);
+        }
+
+        final OpenTSDBReporter.Builder builder = OpenTSDBReporter.forRegistry(new MetricRegistry());
+        if (threads > 0) {
+            builder.snapshotInParallel(threads);
+        }
+        reporter = builder.build(new OpenTSDB(new NullTransport()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.stop();
+    }
+
+    @Benchmark
+    public void report() {
+        reporter.report(gauges, counters, histograms, meters, timers);
+    }
+}
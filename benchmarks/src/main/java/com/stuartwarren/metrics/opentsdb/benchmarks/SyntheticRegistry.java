@@ -0,0 +1,76 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds registries of gauges, counters, histograms, meters and timers in equal numbers, with
+ * names and values like those of a real service, for benchmarks to report.
+ */
+public final class SyntheticRegistry {
+    public static final String[] TYPES = { "gauge", "counter", "histogram", "meter", "timer" };
+
+    private static final int UPDATES = 100;
+
+    private SyntheticRegistry() { /* singleton */ }
+
+    /**
+     * Returns a registry of the given number of metrics, cycling through the metric types.
+     *
+     * @param metrics the number of metrics to register
+     * @return a new registry
+     */
+    public static MetricRegistry of(int metrics) {
+        final MetricRegistry registry = new MetricRegistry();
+        final Random random = new Random(42);
+        for (int i = 0; i < metrics; i++) {
+            add(registry, TYPES[i % TYPES.length], i, random);
+        }
+        return registry;
+    }
+
+    /**
+     * Returns a registry holding one metric of the given type.
+     *
+     * @param type one of {@link #TYPES}
+     * @return a new registry
+     */
+    public static MetricRegistry ofOne(String type) {
+        final MetricRegistry registry = new MetricRegistry();
+        add(registry, type, 0, new Random(42));
+        return registry;
+    }
+
+    private static void add(MetricRegistry registry, String type, int i, Random random) {
+        final String name = MetricRegistry.name("com.example.service" + (i / 100),
+                                                "Resource" + (i % 100), type);
+        if ("gauge".equals(type)) {
+            final double value = random.nextDouble() * 1000;
+            registry.register(name, new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return value;
+                }
+            });
+        } else if ("counter".equals(type)) {
+            registry.counter(name).inc(random.nextInt(100000));
+        } else if ("histogram".equals(type)) {
+            final Histogram histogram = registry.histogram(name);
+            for (int j = 0; j < UPDATES; j++) {
+                histogram.update(random.nextInt(10000));
+            }
+        } else if ("meter".equals(type)) {
+            registry.meter(name).mark(random.nextInt(100000));
+        } else {
+            final Timer timer = registry.timer(name);
+            for (int j = 0; j < UPDATES; j++) {
+                timer.update(random.nextInt(1000000), TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.stuartwarren.metrics.opentsdb.benchmarks;
+
+import com.stuartwarren.metrics.opentsdb.LineEncoder;
+import com.stuartwarren.metrics.opentsdb.OpenTSDB;
+import com.stuartwarren.metrics.opentsdb.UDPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending lines over UDP to a receiver on the loopback interface, one datagram per line
+ * and packed into Ethernet-sized datagrams, in lines per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UdpPackingBenchmark {
+    private static final int LINES = 1000;
+
+    @Param({ "false", "true" })
+    public boolean packLines;
+
+    private DatagramSocket receiver;
+    private Thread draining;
+    private OpenTSDB opentsdb;
+    private LineEncoder encoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        receiver.setReceiveBufferSize(4 * 1024 * 1024);
+        draining = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+                try {
+                    while (true) {
+                        receiver.receive(packet);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "udp-receiver");
+        draining.setDaemon(true);
+        draining.start();
+
+        opentsdb = new OpenTSDB(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()),
+                                Charset.forName("UTF-8"),
+                                UDPOutputStream.ETHERNET_PAYLOAD_SIZE,
+                                packLines);
+        encoder = opentsdb.newEncoder();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        opentsdb.close();
+        receiver.close();
+        draining.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void send() throws IOException {
+        final long timestamp = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < LINES; i++) {
+            encoder.line("prefix", "com.example.Service.requests", "m1_rate", timestamp,
+                         i * 1.5, "host=web01");
+            if (encoder.size() >= LineEncoder.DEFAULT_CAPACITY) {
+                opentsdb.send(encoder);
+            }
+        }
+        opentsdb.send(encoder);
+        opentsdb.flush();
+    }
+}
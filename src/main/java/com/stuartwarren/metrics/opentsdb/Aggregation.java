@@ -0,0 +1,27 @@
+package com.stuartwarren.metrics.opentsdb;
+
+/**
+ * How the values of a downsampled metric within an interval are combined into the single value
+ * sent for the interval.
+ */
+public enum Aggregation {
+    /**
+     * The mean of the values, which is always sent as a decimal.
+     */
+    AVG,
+
+    /**
+     * The smallest value.
+     */
+    MIN,
+
+    /**
+     * The largest value, e.g. the latest value of a cumulative count.
+     */
+    MAX,
+
+    /**
+     * The sum of the values, e.g. of counter deltas.
+     */
+    SUM
+}
@@ -0,0 +1,214 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends batches of encoded lines to OpenTSDB on a thread of its own, so a slow or unreachable
+ * server never holds up the thread which takes the measurements.
+ * <p>
+ * Batches wait in a bounded queue, and when it is full the {@link OverflowPolicy} decides which
+ * batch is dropped. The client is flushed whenever the queue runs empty, so the batches of one
+ * report go out together. Sent batches are cleared and handed back out by {@link #acquire()}.
+ * <p>
+ * Once started, the sending thread owns the client, and closes it once it has sent the last
+ * batch.
+ */
+class AsyncSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncSender.class);
+    private static final long POLL_INTERVAL = 100;
+
+    private final OpenTSDB opentsdb;
+    private final int decimals;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<LineEncoder> queue;
+    private final ConcurrentMap<Integer, Queue<LineEncoder>> free; // by decimal places
+    private final AtomicLong batchesDropped;
+    private final AtomicLong linesDropped;
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    AsyncSender(OpenTSDB opentsdb, int decimals, int queueSize, OverflowPolicy overflowPolicy) {
+        this.opentsdb = opentsdb;
+        this.decimals = decimals;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<LineEncoder>(queueSize);
+        this.free = new ConcurrentHashMap<Integer, Queue<LineEncoder>>();
+        this.batchesDropped = new AtomicLong();
+        this.linesDropped = new AtomicLong();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "opentsdb-sender");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns an empty batch to encode lines into, reusing one already sent if there is one.
+     *
+     * @return an empty {@link LineEncoder}
+     */
+    LineEncoder acquire() {
+        return acquire(decimals);
+    }
+
+    /**
+     * Returns an empty batch to encode lines into with the given number of decimal places, so
+     * reporters with different settings can share a sender.
+     *
+     * @param decimals the number of decimal places doubles are written with
+     * @return an empty {@link LineEncoder}
+     */
+    LineEncoder acquire(int decimals) {
+        final LineEncoder batch = pool(decimals).poll();
+        return batch == null ? opentsdb.newEncoder(decimals) : batch;
+    }
+
+    /**
+     * Queues a batch to be sent, dropping a batch if the queue is full. The batch must not be used
+     * again by the caller.
+     *
+     * @param batch the lines to send
+     */
+    void submit(LineEncoder batch) {
+        if (batch.lines() == 0 || closed) {
+            release(batch);
+            return;
+        }
+        if (queue.offer(batch)) {
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            final LineEncoder oldest = queue.poll();
+            if (oldest != null) {
+                drop(oldest);
+            }
+            if (queue.offer(batch)) {
+                return;
+            }
+        }
+        drop(batch);
+    }
+
+    /**
+     * Returns the number of batches waiting to be sent.
+     *
+     * @return the number of queued batches
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of batches dropped because the queue was full.
+     *
+     * @return the number of batches dropped
+     */
+    long getBatchesDropped() {
+        return batchesDropped.get();
+    }
+
+    /**
+     * Returns the number of lines in the batches dropped because the queue was full.
+     *
+     * @return the number of lines dropped
+     */
+    long getLinesDropped() {
+        return linesDropped.get();
+    }
+
+    /**
+     * Sends the batches still queued, stops the sending thread and closes the client, waiting at
+     * most the given time for that to finish. A sending thread still busy after that closes the
+     * client when it is done, so the client is never closed under it.
+     *
+     * @param timeout the longest time to wait, in milliseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void close(long timeout) throws InterruptedException {
+        closed = true;
+        thread.join(timeout);
+        if (thread.isAlive()) {
+            LOGGER.warn("Still sending to OpenTSDB after {}ms; the client is closed once done",
+                        timeout);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                final LineEncoder batch;
+                try {
+                    batch = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (batch != null) {
+                    send(batch);
+                }
+            }
+        } finally {
+            try {
+                opentsdb.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error disconnecting from OpenTSDB", opentsdb, e);
+            }
+        }
+    }
+
+    private void send(LineEncoder batch) {
+        try {
+            opentsdb.send(batch);
+            if (queue.isEmpty()) {
+                opentsdb.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to report to OpenTSDB", opentsdb, e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to report to OpenTSDB", opentsdb, e);
+        } finally {
+            release(batch);
+        }
+    }
+
+    private void drop(LineEncoder batch) {
+        batchesDropped.incrementAndGet();
+        linesDropped.addAndGet(batch.lines());
+        release(batch);
+    }
+
+    /**
+     * Clears a batch which is not going to be submitted and hands it back out.
+     *
+     * @param batch a batch taken by {@link #acquire(int)}
+     */
+    void release(LineEncoder batch) {
+        batch.clear();
+        pool(batch.getDecimals()).offer(batch);
+    }
+
+    private Queue<LineEncoder> pool(int decimals) {
+        final Queue<LineEncoder> pool = free.get(decimals);
+        if (pool != null) {
+            return pool;
+        }
+        final Queue<LineEncoder> created = new ConcurrentLinkedQueue<LineEncoder>();
+        final Queue<LineEncoder> raced = free.putIfAbsent(decimals, created);
+        return raced == null ? created : raced;
+    }
+}
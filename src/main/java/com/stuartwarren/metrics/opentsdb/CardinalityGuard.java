@@ -0,0 +1,179 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Caps the number of new names a reporter admits, so that a bug which puts e.g. request ids into
+ * metric names cannot flood the TSDs with series.
+ * <p>
+ * Names are grouped by prefix, their first few dot-separated segments. Within each window, each
+ * prefix may admit a limited number of names not admitted before, and no more names are admitted
+ * once a limit on the whole is reached. Admitted names are remembered until their metric is
+ * removed, so they pass every later report; the others are counted as rejected and tried again on
+ * each report, and may be admitted in a later window. A {@link HyperLogLog} per prefix estimates
+ * how many distinct new names it tried to add in the current window, for telling a runaway
+ * prefix from one which is merely busy. The names rejected under each prefix are also counted
+ * until the reporter takes the counts at the end of a report.
+ * <p>
+ * The reporter only asks about names missing from its name cache.
+ */
+class CardinalityGuard {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CardinalityGuard.class);
+    private static final int MAX_PREFIXES = 1024;
+    private static final String OTHER_PREFIXES = "";
+
+    private final int perWindow;
+    private final long window; // milliseconds
+    private final int maxSeries;
+    private final int segments;
+    private final Clock clock;
+    private final Set<String> admitted;
+    private final Map<String, Prefix> prefixes;
+    private Map<String, Integer> overflows; // the names rejected by prefix, since last taken
+
+    private long windowStart;
+    private volatile long rejected = 0;
+
+    CardinalityGuard(int perWindow, long window, int maxSeries, int segments, Clock clock) {
+        this.perWindow = perWindow;
+        this.window = window;
+        this.maxSeries = maxSeries;
+        this.segments = segments;
+        this.clock = clock;
+        this.admitted = new HashSet<String>();
+        this.prefixes = new HashMap<String, Prefix>();
+        this.overflows = new TreeMap<String, Integer>();
+        this.windowStart = clock.getTime();
+    }
+
+    /**
+     * Returns whether the given name may be reported, admitting it if it is new and its prefix
+     * has room left in the window.
+     */
+    synchronized boolean admit(String name) {
+        if (admitted.contains(name)) {
+            return true;
+        }
+        roll();
+        final String group = prefix(name);
+        final Prefix prefix = group(group);
+        prefix.attempted.add(name);
+        if (prefix.admitted < perWindow && admitted.size() < maxSeries) {
+            prefix.admitted++;
+            admitted.add(name);
+            return true;
+        }
+        rejected++;
+        overflowed(group);
+        if (!prefix.warned) {
+            prefix.warned = true;
+            LOGGER.warn("More than {} new metric names under {} in {}ms; leaving out the rest, " +
+                                "e.g. {}", perWindow, group, window, name);
+        }
+        return false;
+    }
+
+    /**
+     * Forgets an admitted name, e.g. because its metric was removed.
+     */
+    synchronized void remove(String name) {
+        admitted.remove(name);
+    }
+
+    /**
+     * Returns the prefix a name is grouped under: its first segments, or the whole name if it
+     * has no more.
+     */
+    String prefix(String name) {
+        int end = -1;
+        for (int i = 0; i < segments; i++) {
+            end = name.indexOf('.', end + 1);
+            if (end < 0) {
+                return name;
+            }
+        }
+        return name.substring(0, end);
+    }
+
+    /**
+     * Returns the number of times names have been left out.
+     */
+    long getRejections() {
+        return rejected;
+    }
+
+    /**
+     * Returns the number of names rejected under each prefix since the counts were last taken,
+     * in order of prefix, and starts counting afresh. The prefixes beyond the most kept are
+     * counted together under the empty prefix.
+     */
+    synchronized Map<String, Integer> takeOverflows() {
+        if (overflows.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> taken = overflows;
+        overflows = new TreeMap<String, Integer>();
+        return taken;
+    }
+
+    /**
+     * Returns the estimated number of distinct names not admitted before which the given prefix
+     * tried to add in the current window.
+     */
+    synchronized long estimateNewNames(String prefix) {
+        roll();
+        final Prefix p = prefixes.get(prefix);
+        return p == null ? 0 : p.attempted.estimate();
+    }
+
+    private Prefix group(String group) {
+        Prefix prefix = prefixes.get(group);
+        if (prefix == null) {
+            if (prefixes.size() >= MAX_PREFIXES) {
+                // so many prefixes are a runaway of their own; they share one budget
+                group = OTHER_PREFIXES;
+                prefix = prefixes.get(group);
+            }
+            if (prefix == null) {
+                prefix = new Prefix();
+                prefixes.put(group, prefix);
+            }
+        }
+        return prefix;
+    }
+
+    private void overflowed(String group) {
+        final Integer count = overflows.get(group);
+        if (count != null) {
+            overflows.put(group, count + 1);
+        } else if (overflows.size() < MAX_PREFIXES) {
+            overflows.put(group, 1);
+        } else {
+            final Integer others = overflows.get(OTHER_PREFIXES);
+            overflows.put(OTHER_PREFIXES, others == null ? 1 : others + 1);
+        }
+    }
+
+    private void roll() {
+        final long now = clock.getTime();
+        if (now - windowStart >= window) {
+            prefixes.clear();
+            windowStart = now;
+        }
+    }
+
+    private static class Prefix {
+        private final HyperLogLog attempted = new HyperLogLog();
+        private int admitted = 0;
+        private boolean warned = false;
+    }
+}
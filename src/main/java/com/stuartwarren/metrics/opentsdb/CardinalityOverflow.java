@@ -0,0 +1,20 @@
+package com.stuartwarren.metrics.opentsdb;
+
+/**
+ * What a reporter does with a metric whose name it has not reported before, once the number of
+ * new names under the metric's prefix has reached the limit for the window.
+ */
+public enum CardinalityOverflow {
+    /**
+     * Leave the metric out of the report.
+     */
+    DROP,
+
+    /**
+     * Leave the metric out of the report, and report one point per prefix instead, as the
+     * prefix's overflow series {@code <prefix>.cardinality-overflow}, whose value is the number
+     * of names left out of the report. However many names overflow, the TSD only sees one more
+     * series per prefix.
+     */
+    COLLAPSE
+}
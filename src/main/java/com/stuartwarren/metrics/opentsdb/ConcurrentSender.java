@@ -0,0 +1,354 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends measurements from any number of application threads, e.g. deploy markers or the results
+ * of batch jobs, through one {@link OpenTSDB} client, which is not threadsafe itself.
+ * <p>
+ * Points are encoded into batches held in a small array of stripes, a thread starting at the
+ * stripe its id maps to. A producer takes a batch out of its stripe with a single atomic swap,
+ * so no two threads ever encode into the same batch, and puts it back afterwards; a full batch is
+ * handed over to the flushing thread through a lock-free queue instead. Producers never block or
+ * take a lock. The flushing thread sends full batches as soon as they are queued, and collects
+ * the partly filled ones from the stripes every flush interval, so a point waits at most that
+ * long. On close, it waits for the producers still holding a batch to hand it back before
+ * collecting the stripes for the last time, so every point accepted is sent.
+ * <p>
+ * Memory is bounded by the number of batches, each of a fixed size; while all of them are full
+ * and waiting to be sent, further points are dropped and counted.
+ * <p>
+ * The client must not be used by anything else, e.g. a reporter, while the sender is open. The
+ * flushing thread owns it, and closes it once it has sent the last batch.
+ */
+public class ConcurrentSender implements Closeable {
+    public static final int DEFAULT_BATCH_SIZE = LineEncoder.DEFAULT_CAPACITY;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentSender.class);
+    private static final int LINE_ALLOWANCE = 256; // room left in a batch to finish a line in
+    private static final long CLOSE_TIMEOUT = 10000;
+
+    private final OpenTSDB opentsdb;
+    private final AtomicReferenceArray<LineEncoder> stripes;
+    private final AtomicIntegerArray producing; // the producers holding a batch, by stripe
+    private final int mask;
+    private final int maxBatches;
+    private final long flushInterval; // nanoseconds
+    private final Queue<LineEncoder> full;
+    private final Queue<LineEncoder> free;
+    private final AtomicInteger allocated;
+    private final AtomicInteger queued;
+    private final AtomicLong pointsDropped;
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new sender with a stripe per processor, four batches per stripe, and a flush
+     * interval of {@link #DEFAULT_FLUSH_INTERVAL} milliseconds.
+     *
+     * @param opentsdb the client to send through, which the sender takes over
+     */
+    public ConcurrentSender(OpenTSDB opentsdb) {
+        this(opentsdb, Runtime.getRuntime().availableProcessors(),
+             4 * Runtime.getRuntime().availableProcessors(), DEFAULT_FLUSH_INTERVAL,
+             TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new sender.
+     *
+     * @param opentsdb      the client to send through, which the sender takes over
+     * @param stripes       the number of batches being filled at once, rounded up to a power of
+     *                      two
+     * @param maxBatches    the most batches, of {@link #DEFAULT_BATCH_SIZE} bytes each, held at
+     *                      once
+     * @param flushInterval the longest a point waits to be sent
+     * @param unit          the unit of {@code flushInterval}
+     */
+    public ConcurrentSender(OpenTSDB opentsdb, int stripes, int maxBatches, long flushInterval,
+                            TimeUnit unit) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        if (maxBatches < 1) {
+            throw new IllegalArgumentException("maxBatches must be positive");
+        }
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval must be positive");
+        }
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.opentsdb = opentsdb;
+        this.stripes = new AtomicReferenceArray<LineEncoder>(size);
+        this.producing = new AtomicIntegerArray(size);
+        this.mask = size - 1;
+        this.maxBatches = maxBatches;
+        this.flushInterval = unit.toNanos(flushInterval);
+        this.full = new ConcurrentLinkedQueue<LineEncoder>();
+        this.free = new ConcurrentLinkedQueue<LineEncoder>();
+        this.allocated = new AtomicInteger();
+        this.queued = new AtomicInteger();
+        this.pointsDropped = new AtomicLong();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "opentsdb-flusher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a measurement with a whole number value to be sent.
+     *
+     * @param name      the name of the metric
+     * @param value     the value of the metric
+     * @param timestamp the timestamp of the metric, in seconds
+     * @param tags      the tags of the metric, encoded by {@link OpenTSDB#encodeTags(Map)}, or an
+     *                  empty string for none
+     * @return {@code false} if the point was dropped, because the sender is full or closed
+     */
+    public boolean send(String name, long value, long timestamp, String tags) {
+        final LineEncoder batch = take();
+        if (batch == null) {
+            return false;
+        }
+        try {
+            batch.line(null, name, null, timestamp, value, tags);
+        } finally {
+            give(batch);
+        }
+        return true;
+    }
+
+    /**
+     * Queues a measurement with a decimal value to be sent.
+     *
+     * @param name      the name of the metric
+     * @param value     the value of the metric
+     * @param timestamp the timestamp of the metric, in seconds
+     * @param tags      the tags of the metric, encoded by {@link OpenTSDB#encodeTags(Map)}, or an
+     *                  empty string for none
+     * @return {@code false} if the point was dropped, because the sender is full or closed
+     */
+    public boolean send(String name, double value, long timestamp, String tags) {
+        final LineEncoder batch = take();
+        if (batch == null) {
+            return false;
+        }
+        try {
+            batch.line(null, name, null, timestamp, value, tags);
+        } finally {
+            give(batch);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of full batches waiting to be sent.
+     *
+     * @return the number of queued batches
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of points dropped because every batch was full, or the sender closed.
+     *
+     * @return the number of points dropped
+     */
+    public long getPointsDropped() {
+        return pointsDropped.get();
+    }
+
+    /**
+     * Sends the points already queued and closes the client, waiting a while for that to finish.
+     * A flushing thread still busy after that closes the client when it is done, so the client is
+     * never closed under it. Points sent afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        close(CLOSE_TIMEOUT);
+    }
+
+    /**
+     * Closes the sender, waiting at most the given time for the flushing thread to finish.
+     *
+     * @param timeout the longest time to wait, in milliseconds
+     */
+    void close(long timeout) {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            LOGGER.warn("Still sending to OpenTSDB after {}ms; the client is closed once done",
+                        timeout);
+        }
+    }
+
+    /**
+     * Takes a batch for the calling thread to encode into: one out of the stripes if there is
+     * one, otherwise a free or new one, or {@code null} if none is left. Every batch taken must
+     * be handed back through {@link #give(LineEncoder)}.
+     */
+    private LineEncoder take() {
+        final int start = stripe();
+        // counted before checking closed, so the flushing thread either sees us or we see closed
+        producing.incrementAndGet(start);
+        if (closed) {
+            producing.decrementAndGet(start);
+            pointsDropped.incrementAndGet();
+            return null;
+        }
+        for (int i = 0; i <= mask; i++) {
+            final LineEncoder batch = stripes.getAndSet((start + i) & mask, null);
+            if (batch != null) {
+                return batch;
+            }
+        }
+        final LineEncoder batch = free.poll();
+        if (batch != null) {
+            return batch;
+        }
+        if (allocated.incrementAndGet() > maxBatches) {
+            allocated.decrementAndGet();
+            producing.decrementAndGet(start);
+            pointsDropped.incrementAndGet();
+            return null;
+        }
+        return opentsdb.newEncoder();
+    }
+
+    /**
+     * Hands a batch back after encoding into it: queued to be sent if it is full, otherwise put
+     * back into an empty stripe, or queued if there is none.
+     */
+    private void give(LineEncoder batch) {
+        final int start = stripe();
+        try {
+            if (batch.size() < DEFAULT_BATCH_SIZE - LINE_ALLOWANCE) {
+                for (int i = 0; i <= mask; i++) {
+                    if (stripes.compareAndSet((start + i) & mask, null, batch)) {
+                        return;
+                    }
+                }
+            }
+            queued.incrementAndGet();
+            full.offer(batch);
+            LockSupport.unpark(thread);
+        } finally {
+            producing.decrementAndGet(start);
+        }
+    }
+
+    private int stripe() {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    private void flushLoop() {
+        try {
+            long due = System.nanoTime() + flushInterval;
+            while (!closed) {
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    // woken early by a full batch being queued
+                    LockSupport.parkNanos(this, wait);
+                }
+                if (System.nanoTime() - due >= 0) {
+                    drain(true);
+                    due = System.nanoTime() + flushInterval;
+                } else {
+                    drain(false);
+                }
+            }
+            awaitProducers();
+            drain(true);
+        } finally {
+            try {
+                opentsdb.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error disconnecting from OpenTSDB", opentsdb, e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the producers which took a batch before the sender closed to hand it back.
+     * Encoding a line never blocks, so the wait is short.
+     */
+    private void awaitProducers() {
+        for (int i = 0; i <= mask; i++) {
+            while (producing.get(i) > 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Sends the queued batches and, when the flush interval is up, the partly filled ones the
+     * stripes hold.
+     */
+    private void drain(boolean stripes) {
+        boolean sent = false;
+        LineEncoder batch;
+        while ((batch = full.poll()) != null) {
+            queued.decrementAndGet();
+            sent |= send(batch);
+        }
+        if (stripes) {
+            for (int i = 0; i <= mask; i++) {
+                batch = this.stripes.getAndSet(i, null);
+                if (batch != null) {
+                    sent |= send(batch);
+                }
+            }
+        }
+        if (sent) {
+            try {
+                opentsdb.flush();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to report to OpenTSDB", opentsdb, e);
+            }
+        }
+    }
+
+    private boolean send(LineEncoder batch) {
+        final boolean lines = batch.lines() > 0;
+        try {
+            if (lines) {
+                opentsdb.send(batch);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to report to OpenTSDB", opentsdb, e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to report to OpenTSDB", opentsdb, e);
+        } finally {
+            batch.clear();
+            free.offer(batch);
+        }
+        return lines;
+    }
+}
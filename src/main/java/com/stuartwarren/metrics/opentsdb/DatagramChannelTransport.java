@@ -0,0 +1,284 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A transport which sends measurements as UDP datagrams over a connected {@link DatagramChannel},
+ * packing as many whole lines into each datagram as fit, like a {@link UDPOutputStream} with line
+ * packing enabled.
+ * <p>
+ * Lines are written straight into a pool of direct buffers, one per datagram, and a report's
+ * datagrams are sent back to back on {@link #flush()}, so that sending allocates nothing and
+ * copies nothing beyond the one copy into the direct buffer, which the kernel reads from. Only a
+ * line split across datagrams is moved, to the start of the next buffer. When every buffer in the
+ * pool is full, the datagrams are sent before the report is over and the pool reused.
+ * <p>
+ * A line longer than a datagram can never be sent whole, so it is dropped and counted.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+public class DatagramChannelTransport extends Transport {
+    public static final int DEFAULT_PAYLOAD_SIZE = UDPOutputStream.ETHERNET_PAYLOAD_SIZE;
+    public static final int DEFAULT_POOL_SIZE = 64;
+
+    private final InetSocketAddress address;
+    private final ByteBuffer[] pool;
+    private final byte[] single = new byte[1];
+
+    private DatagramChannel channel;
+    private int current = 0; // the buffer being filled; those before it are ready to send
+    private int lineEnd = 0; // the position just past the last whole line in the current buffer
+    private boolean discarding = false; // dropping the remainder of an oversized line
+    private long linesDropped = 0;
+
+    /**
+     * Creates a new transport which sends Ethernet-sized datagrams to the given address, from a
+     * pool of {@link #DEFAULT_POOL_SIZE} buffers.
+     *
+     * @param address the address of the udp_bridge
+     */
+    public DatagramChannelTransport(InetSocketAddress address) {
+        this(address, DEFAULT_PAYLOAD_SIZE, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Creates a new transport.
+     *
+     * @param address     the address of the udp_bridge
+     * @param payloadSize the largest datagram to send, e.g. the network's largest unfragmented
+     *                    payload
+     * @param poolSize    the number of datagrams buffered before they are sent, at least 2
+     */
+    public DatagramChannelTransport(InetSocketAddress address, int payloadSize, int poolSize) {
+        if (payloadSize < 1) {
+            throw new IllegalArgumentException("payloadSize must be positive");
+        }
+        if (poolSize < 2) {
+            throw new IllegalArgumentException("poolSize must be at least 2");
+        }
+        this.address = address;
+        this.pool = new ByteBuffer[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            pool[i] = ByteBuffer.allocateDirect(payloadSize);
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (isConnected()) {
+            return;
+        }
+        // a connected channel keeps one local port and skips the per-send destination checks
+        channel = DatagramChannel.open();
+        try {
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int start = off;
+        while (start < end) {
+            final int newline = indexOfNewline(b, start, end);
+            if (discarding) {
+                if (newline < 0) {
+                    return;
+                }
+                discarding = false;
+                start = newline + 1;
+                continue;
+            }
+            final int stop = newline < 0 ? end : newline + 1;
+            final ByteBuffer buffer = pool[current];
+            if (stop - start > buffer.remaining()) {
+                if (lineEnd == 0) {
+                    // the current line alone overflows the datagram
+                    buffer.clear();
+                    linesDropped++;
+                    discarding = true;
+                } else {
+                    seal();
+                }
+                continue;
+            }
+            buffer.put(b, start, stop - start);
+            if (newline >= 0) {
+                lineEnd = buffer.position();
+            }
+            start = stop;
+        }
+    }
+
+    /**
+     * Sends every whole line written so far, leaving a partial line to be finished by the next
+     * write.
+     *
+     * @throws IOException if a datagram could not be sent, which closes the channel; the
+     *                     datagrams not sent are kept for {@link #spillUnsent(SpillFile)} or the
+     *                     next flush
+     */
+    @Override
+    public void flush() throws IOException {
+        if (lineEnd > 0) {
+            seal();
+        }
+        if (current > 0) {
+            send(current);
+            swap(0, current);
+            current = 0;
+        }
+    }
+
+    /**
+     * Moves the whole lines not yet sent into the spill file, leaving a partial line.
+     */
+    @Override
+    public void spillUnsent(SpillFile spill) {
+        final byte[] bytes = new byte[getPayloadSize()];
+        for (int i = 0; i < current; i++) {
+            // a datagram sent before a failure has nothing remaining
+            final int length = pool[i].remaining();
+            if (spill != null && length > 0) {
+                pool[i].get(bytes, 0, length);
+                spill.write(bytes, 0, length);
+            }
+            pool[i].clear();
+        }
+        final ByteBuffer buffer = pool[current];
+        final int partial = buffer.position() - lineEnd;
+        buffer.flip();
+        buffer.get(bytes, 0, lineEnd);
+        if (spill != null && lineEnd > 0) {
+            spill.write(bytes, 0, lineEnd);
+        }
+        buffer.get(bytes, 0, partial);
+        buffer.clear();
+        buffer.put(bytes, 0, partial);
+        swap(0, current);
+        current = 0;
+        lineEnd = 0;
+    }
+
+    /**
+     * Closes the channel and discards the lines not yet sent.
+     */
+    @Override
+    public void close() throws IOException {
+        for (ByteBuffer buffer : pool) {
+            buffer.clear();
+        }
+        current = 0;
+        lineEnd = 0;
+        discarding = false;
+        if (channel != null) {
+            final DatagramChannel closing = channel;
+            channel = null;
+            closing.close();
+        }
+    }
+
+    /**
+     * Returns the size of the largest datagram sent.
+     *
+     * @return the payload size, in bytes
+     */
+    public int getPayloadSize() {
+        return pool[0].capacity();
+    }
+
+    /**
+     * Returns the number of lines dropped for being larger than a datagram.
+     *
+     * @return the number of lines dropped
+     */
+    public long getLinesDropped() {
+        return linesDropped;
+    }
+
+    /**
+     * Ends the current buffer's datagram after its last whole line and moves on to the next
+     * buffer, carrying over the partial line, sending the full buffers first when none is left.
+     */
+    private void seal() throws IOException {
+        if (current == pool.length - 1) {
+            send(current);
+            swap(0, current);
+            current = 0;
+        }
+        final ByteBuffer full = pool[current];
+        final ByteBuffer next = pool[current + 1];
+        next.clear();
+        for (int i = lineEnd; i < full.position(); i++) {
+            next.put(full.get(i));
+        }
+        full.position(lineEnd);
+        full.flip();
+        current++;
+        lineEnd = 0;
+    }
+
+    /**
+     * Sends the first given number of buffers, each as a datagram, skipping those already sent
+     * before a failure. A sent buffer has nothing remaining until it is reused.
+     */
+    private void send(int count) throws IOException {
+        connect();
+        try {
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer datagram = pool[i];
+                final int length = datagram.remaining();
+                if (length == 0) {
+                    continue;
+                }
+                pace(length);
+                channel.write(datagram);
+                packetsSent++;
+                bytesSent += length;
+            }
+        } catch (IOException e) {
+            final DatagramChannel closing = channel;
+            channel = null;
+            closing.close();
+            throw e;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final ByteBuffer buffer = pool[i];
+        pool[i] = pool[j];
+        pool[j] = buffer;
+    }
+
+    private static int indexOfNewline(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "DatagramChannelTransport{" + address + '}';
+    }
+}
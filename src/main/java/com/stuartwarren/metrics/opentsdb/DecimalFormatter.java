@@ -0,0 +1,169 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.util.Locale;
+
+/**
+ * Formats doubles with a fixed number of decimal places as ASCII bytes, exactly as
+ * {@code String.format("%.<decimals>f", v)} would but without going through
+ * {@link java.util.Formatter}, except that negative zero, and negative values which round to
+ * zero, are written without a sign.
+ * <p>
+ * A double is m / 2^shift, so (m * 10^decimals) >> shift gives the digits of its exact value and
+ * the bits shifted out decide the rounding. {@link java.util.Formatter} rounds the shortest
+ * decimal which identifies the double rather than its exact value, so the two agree unless a
+ * rounding boundary lies within an ulp of the value. Those rare values, values too large to have
+ * a fractional part, and values formatted with more than {@link #MAX_FAST_DECIMALS} decimal places
+ * go through {@link String#format} itself.
+ * <p>
+ * OpenTSDB rejects {@code NaN} and infinite values, which are formatted as {@link String#format}
+ * formats them; callers should not send them at all.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+public class DecimalFormatter {
+    public static final int DEFAULT_DECIMALS = 2;
+
+    /**
+     * The most decimal places formatted without {@link String#format}, as m * 10^decimals must
+     * fit in a long for a 53-bit mantissa m.
+     */
+    public static final int MAX_FAST_DECIMALS = 3;
+
+    private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L };
+
+    private final int decimals;
+    private final String pattern;
+    private final byte[] digits = new byte[20];
+
+    private final byte[] bytes;
+
+    /**
+     * Creates a new formatter with {@link #DEFAULT_DECIMALS} decimal places.
+     */
+    public DecimalFormatter() {
+        this(DEFAULT_DECIMALS);
+    }
+
+    /**
+     * Creates a new formatter.
+     *
+     * @param decimals the number of decimal places to format
+     */
+    public DecimalFormatter(int decimals) {
+        if (decimals < 0) {
+            throw new IllegalArgumentException("decimals must not be negative");
+        }
+        this.decimals = decimals;
+        this.pattern = "%." + decimals + "f";
+        // room for the 309 digits of Double.MAX_VALUE, a sign, a point and the decimals
+        this.bytes = new byte[312 + decimals];
+    }
+
+    /**
+     * Returns the number of decimal places formatted.
+     *
+     * @return the number of decimal places
+     */
+    public int getDecimals() {
+        return decimals;
+    }
+
+    /**
+     * Formats the given value into {@link #bytes()}, which is overwritten by the next call.
+     *
+     * @param v the value to format
+     * @return the number of bytes formatted
+     */
+    public int format(double v) {
+        final long bits = Double.doubleToRawLongBits(v);
+        final int exponent = (int) ((bits >> 52) & 0x7FF);
+        if (exponent == 0x7FF || decimals > MAX_FAST_DECIMALS) {
+            return slow(v);
+        }
+        long mantissa = bits & 0xFFFFFFFFFFFFFL;
+        final int shift;
+        if (exponent == 0) {
+            shift = 1074;
+        } else {
+            mantissa |= 1L << 52;
+            shift = 1075 - exponent;
+        }
+
+        final long scale = POWERS_OF_TEN[decimals];
+        final long scaled;
+        if (shift <= 0) {
+            return slow(v);
+        } else if (shift >= 64) {
+            scaled = 0; // m * scale < 2^63, so less than half of 2^shift
+        } else {
+            final long m = mantissa * scale; // mantissa < 2^53 and scale < 2^10, so this fits
+            final long whole = m >>> shift;
+            final long half = 1L << (shift - 1);
+            final long remainder = m & ((1L << shift) - 1);
+            if (Math.abs(remainder - half) <= scale) {
+                // within an ulp of a rounding boundary
+                return slow(v);
+            }
+            scaled = remainder > half ? whole + 1 : whole;
+        }
+
+        int length = 0;
+        if (bits < 0 && scaled != 0) {
+            bytes[length++] = '-';
+        }
+        length = digits(scaled / scale, 1, length);
+        if (decimals > 0) {
+            bytes[length++] = '.';
+            length = digits(scaled % scale, decimals, length);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the bytes of the last value formatted.
+     *
+     * @return the formatted bytes
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    private int slow(double v) {
+        String formatted = String.format(Locale.US, pattern, v);
+        if (formatted.charAt(0) == '-' && isZero(formatted)) {
+            formatted = formatted.substring(1);
+        }
+        for (int i = 0; i < formatted.length(); i++) {
+            bytes[i] = (byte) formatted.charAt(i);
+        }
+        return formatted.length();
+    }
+
+    /**
+     * Writes a non-negative number, padded with zeros to at least the given number of digits.
+     */
+    private int digits(long n, int minDigits, int offset) {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + (n % 10));
+            n /= 10;
+        } while (n > 0);
+        while (count < minDigits) {
+            digits[count++] = '0';
+        }
+        while (count > 0) {
+            bytes[offset++] = digits[--count];
+        }
+        return offset;
+    }
+
+    private static boolean isZero(String formatted) {
+        for (int i = 1; i < formatted.length(); i++) {
+            final char c = formatted.charAt(i);
+            if (c != '0' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
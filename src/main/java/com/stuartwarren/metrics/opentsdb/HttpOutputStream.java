@@ -0,0 +1,459 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link Transport} which posts measurements to a TSD's HTTP {@code /api/put} endpoint, e.g.
+ * through a load balancer.
+ * <p>
+ * Each line is converted to a JSON data point as it arrives and streamed into the body of the
+ * current request, so a batch is never built up as a document. A batch is sent once it holds the
+ * maximum number of points or bytes, or on {@link #flush()}. Bodies may be gzipped, and
+ * connections are kept alive between requests. The lines of a batch are also kept until it is
+ * sent, so those of a failed batch can go to the client's spill file.
+ * <p>
+ * Chunked requests are only accepted by TSDs with {@code tsd.http.request.enable_chunked} set;
+ * without chunked streaming each batch is buffered by {@link HttpURLConnection} before it is
+ * sent, bounded by the batch size.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+public class HttpOutputStream extends Transport {
+    public static final int DEFAULT_PORT = 4242;
+    public static final int DEFAULT_MAX_BATCH_POINTS = 50;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7',
+                                        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+    private static final byte[] METRIC = ascii("{\"metric\":\"");
+    private static final byte[] TIMESTAMP = ascii("\",\"timestamp\":");
+    private static final byte[] VALUE = ascii(",\"value\":");
+    private static final byte[] TAGS = ascii(",\"tags\":{");
+
+    private final URL url;
+
+    private int maxBatchPoints = DEFAULT_MAX_BATCH_POINTS;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private boolean gzip = false;
+    private boolean chunked = false;
+
+    private boolean open = false;
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private byte[] held = new byte[256]; // the lines of the batch, or of one which failed
+    private int heldLength = 0;
+    private long linesDropped = 0;
+
+    private HttpURLConnection connection;
+    private CountingOutputStream wire;
+    private OutputStream body;
+    private int batchPoints = 0;
+    private int batchBytes = 0;
+
+    /**
+     * Creates a new transport to the TSD at the given base URL, e.g. {@code http://tsd:4242}.
+     *
+     * @param tsd the base URL of the TSD
+     * @throws MalformedURLException if the {@code /api/put} URL cannot be built from it
+     */
+    public HttpOutputStream(URL tsd) throws MalformedURLException {
+        this.url = new URL(tsd, "/api/put");
+    }
+
+    /**
+     * Sets the most data points sent in a single request.
+     *
+     * @param maxBatchPoints the most data points per request
+     */
+    public void setMaxBatchPoints(int maxBatchPoints) {
+        this.maxBatchPoints = maxBatchPoints;
+    }
+
+    /**
+     * Sets the most uncompressed JSON bytes sent in a single request. A request is sent as soon
+     * as a data point takes it past this size.
+     *
+     * @param maxBatchBytes the most bytes per request
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Sets whether request bodies are gzipped.
+     *
+     * @param gzip {@code true} to gzip request bodies
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Sets whether request bodies are streamed with chunked transfer encoding. The TSD must
+     * have {@code tsd.http.request.enable_chunked} set.
+     *
+     * @param chunked {@code true} to stream request bodies in chunks
+     */
+    public void setChunkedStreaming(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Sets the connect and read timeouts of each request.
+     *
+     * @param connectTimeout the connect timeout, in milliseconds
+     * @param readTimeout    the read timeout, in milliseconds
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Returns the number of lines dropped for not being a valid data point.
+     *
+     * @return the number of lines dropped
+     */
+    public long getLinesDropped() {
+        return linesDropped;
+    }
+
+    /**
+     * Connections are made per request and kept alive by {@link HttpURLConnection}, so there is
+     * nothing to open up front.
+     */
+    @Override
+    public void connect() {
+        open = true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return open;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final byte b = data[i];
+            if (b == '\n') {
+                point(line, lineLength);
+                lineLength = 0;
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Sends the current batch, if it holds any data points.
+     *
+     * @throws IOException if the batch could not be sent or was rejected
+     */
+    @Override
+    public void flush() throws IOException {
+        if (batchPoints > 0) {
+            send();
+        }
+    }
+
+    /**
+     * Moves the lines of the batch being built, or of the batch which failed, into the spill
+     * file.
+     */
+    @Override
+    public void spillUnsent(SpillFile spill) {
+        if (spill != null && heldLength > 0) {
+            spill.write(held, 0, heldLength);
+        }
+        heldLength = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        abandon();
+        open = false;
+        lineLength = 0;
+        heldLength = 0;
+    }
+
+    /**
+     * Converts a {@code metric timestamp value [tag=value ...]} line into a JSON data point and
+     * adds it to the current batch.
+     */
+    private void point(byte[] l, int length) throws IOException {
+        final int metricEnd = indexOf(l, 0, length, ' ');
+        final int timestampEnd = indexOf(l, metricEnd + 1, length, ' ');
+        if (metricEnd <= 0 || timestampEnd < 0) {
+            linesDropped++;
+            return;
+        }
+        int valueEnd = indexOf(l, timestampEnd + 1, length, ' ');
+        if (valueEnd < 0) {
+            valueEnd = length;
+        }
+        if (valueEnd == timestampEnd + 1) {
+            linesDropped++;
+            return;
+        }
+
+        if (batchPoints == 0) {
+            // the lines of a failed batch which were not spilled are dropped
+            heldLength = 0;
+        }
+        hold(l, length);
+        try {
+            if (batchPoints == 0) {
+                begin();
+            } else {
+                body(',');
+            }
+            body(METRIC);
+            string(l, 0, metricEnd);
+            body(TIMESTAMP);
+            body(l, metricEnd + 1, timestampEnd - metricEnd - 1);
+            body(VALUE);
+            value(l, timestampEnd + 1, valueEnd);
+            body(TAGS);
+            int tag = valueEnd + 1;
+            boolean first = true;
+            while (tag < length) {
+                int tagEnd = indexOf(l, tag, length, ' ');
+                if (tagEnd < 0) {
+                    tagEnd = length;
+                }
+                final int equals = indexOf(l, tag, tagEnd, '=');
+                if (equals > tag) {
+                    if (!first) {
+                        body(',');
+                    }
+                    first = false;
+                    body('"');
+                    string(l, tag, equals);
+                    body('"');
+                    body(':');
+                    body('"');
+                    string(l, equals + 1, tagEnd);
+                    body('"');
+                }
+                tag = tagEnd + 1;
+            }
+            body('}');
+            body('}');
+        } catch (IOException e) {
+            abandon();
+            throw e;
+        }
+
+        batchPoints++;
+        if (batchPoints >= maxBatchPoints || batchBytes >= maxBatchBytes) {
+            send();
+        }
+    }
+
+    /**
+     * Keeps a line of the batch, with its newline, until the batch is sent.
+     */
+    private void hold(byte[] l, int length) {
+        if (heldLength + length + 1 > held.length) {
+            held = Arrays.copyOf(held, Math.max(held.length * 2, heldLength + length + 1));
+        }
+        System.arraycopy(l, 0, held, heldLength, length);
+        held[heldLength + length] = '\n';
+        heldLength += length + 1;
+    }
+
+    private void begin() throws IOException {
+        connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (gzip) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        if (chunked) {
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+        wire = new CountingOutputStream(connection.getOutputStream());
+        final OutputStream encoded = gzip ? new GZIPOutputStream(wire, CHUNK_SIZE) : wire;
+        body = new BufferedOutputStream(encoded, CHUNK_SIZE);
+        batchBytes = 0;
+        body('[');
+    }
+
+    private void send() throws IOException {
+        try {
+            body(']');
+            body.close();
+            final int code = connection.getResponseCode();
+            drain(code < 400 ? connection.getInputStream() : connection.getErrorStream());
+            if (code < 200 || code >= 300) {
+                throw new IOException("OpenTSDB rejected a batch of " + batchPoints +
+                                              " points: HTTP " + code);
+            }
+        } catch (IOException e) {
+            abandon();
+            throw e;
+        }
+        packetsSent++;
+        bytesSent += wire.count;
+        heldLength = 0;
+
+        connection = null;
+        wire = null;
+        body = null;
+        batchPoints = 0;
+        batchBytes = 0;
+    }
+
+    private void abandon() {
+        if (connection != null) {
+            connection.disconnect();
+        }
+        connection = null;
+        wire = null;
+        body = null;
+        batchPoints = 0;
+        batchBytes = 0;
+    }
+
+    /**
+     * Reads the rest of a response so the connection can be reused for the next request.
+     */
+    private void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            final byte[] skip = new byte[256];
+            while (in.read(skip) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void value(byte[] l, int from, int to) throws IOException {
+        if (numeric(l, from, to)) {
+            body(l, from, to - from);
+        } else {
+            body('"');
+            string(l, from, to);
+            body('"');
+        }
+    }
+
+    private void string(byte[] l, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            final byte b = l[i];
+            if (b == '"' || b == '\\') {
+                body('\\');
+                body(b);
+            } else if (b >= 0 && b < 0x20) {
+                body('\\');
+                body('u');
+                body('0');
+                body('0');
+                body(HEX[b >> 4]);
+                body(HEX[b & 0xf]);
+            } else {
+                body(b);
+            }
+        }
+    }
+
+    private void body(int b) throws IOException {
+        body.write(b);
+        batchBytes++;
+    }
+
+    private void body(byte[] b) throws IOException {
+        body(b, 0, b.length);
+    }
+
+    private void body(byte[] b, int off, int len) throws IOException {
+        body.write(b, off, len);
+        batchBytes += len;
+    }
+
+    private static boolean numeric(byte[] l, int from, int to) {
+        int i = from;
+        if (l[i] == '-') {
+            i++;
+        }
+        if (i == to || l[i] < '0' || l[i] > '9') {
+            return false;
+        }
+        for (; i < to; i++) {
+            final byte b = l[i];
+            if ((b < '0' || b > '9') && b != '.' && b != 'e' && b != 'E' && b != '-' && b != '+') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] l, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (l[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.stuartwarren.metrics.opentsdb;
+
+/**
+ * Estimates the number of distinct strings added, to within a few percent, in a kilobyte of
+ * registers however many there are.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+class HyperLogLog {
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    /**
+     * Adds a string to the estimate.
+     */
+    void add(String s) {
+        final long hash = hash(s);
+        final int register = (int) (hash >>> (64 - PRECISION));
+        // the rank of the first set bit of the remaining bits, capped at their number plus one
+        final int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * Returns the estimated number of distinct strings added.
+     */
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // linear counting is more accurate for small sets
+            return Math.round(REGISTERS * Math.log((double) REGISTERS / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the characters, with a final mix so every bit depends on every
+     * character.
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
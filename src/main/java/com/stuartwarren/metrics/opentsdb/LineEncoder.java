@@ -0,0 +1,467 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes measurements as {@code metric timestamp value [tags]} lines straight into a reusable
+ * {@link ByteBuffer}, writing names, timestamps and values as bytes without building intermediate
+ * strings, so encoding a report produces next to no garbage.
+ * <p>
+ * Timestamps may be in seconds or, for OpenTSDB 2.x, milliseconds.
+ * Names are sanitized as they are written, each run of whitespace becoming a single {@code -}.
+ * Doubles are written by a {@link DecimalFormatter}, with two decimal places by default. Lines
+ * with {@code NaN} or infinite values, which OpenTSDB rejects, are skipped.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+public class LineEncoder {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] MIN_LONG = ascii(Long.toString(Long.MIN_VALUE));
+
+    private final Charset charset;
+    private final boolean utf8;
+    private final byte[] digits = new byte[20];
+    private final byte[] stamp = new byte[20]; // the digits of the timestamp last written
+    private int stampLength = 0;
+    private long stamped = -1;
+    private final DecimalFormatter decimals;
+
+    private ByteBuffer buffer;
+    private int lines = 0;
+
+    /**
+     * Creates a new UTF-8 encoder with the default capacity.
+     */
+    public LineEncoder() {
+        this(DEFAULT_CAPACITY, UTF_8);
+    }
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param capacity the initial capacity of the buffer, which grows to fit the longest line
+     * @param charset  the character set names and tags are encoded in
+     */
+    public LineEncoder(int capacity, Charset charset) {
+        this(capacity, charset, DecimalFormatter.DEFAULT_DECIMALS);
+    }
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param capacity the initial capacity of the buffer, which grows to fit the longest line
+     * @param charset  the character set names and tags are encoded in
+     * @param decimals the number of decimal places doubles are written with
+     */
+    public LineEncoder(int capacity, Charset charset, int decimals) {
+        this.buffer = ByteBuffer.allocate(Math.max(capacity, 64));
+        this.charset = charset;
+        this.utf8 = UTF_8.equals(charset);
+        this.decimals = new DecimalFormatter(decimals);
+    }
+
+    /**
+     * Returns the number of decimal places doubles are written with.
+     *
+     * @return the number of decimal places
+     */
+    public int getDecimals() {
+        return decimals.getDecimals();
+    }
+
+    /**
+     * Encodes a measurement with a whole number value.
+     *
+     * @param prefix    the prefix of the metric name, or {@code null}
+     * @param name      the metric name
+     * @param suffix    the suffix of the metric name, or {@code null}
+     * @param timestamp the timestamp of the measurement
+     * @param value     the value of the measurement
+     * @param tags      the encoded tags of the metric, or an empty string for none
+     * @return {@code this}
+     */
+    public LineEncoder line(String prefix, String name, String suffix, long timestamp, long value, String tags) {
+        writeName(prefix, name, suffix);
+        put(' ');
+        timestamp(timestamp);
+        put(' ');
+        number(value);
+        writeTags(tags);
+        return endLine();
+    }
+
+    /**
+     * Encodes a measurement with a decimal value, unless it is {@code NaN} or infinite.
+     *
+     * @param prefix    the prefix of the metric name, or {@code null}
+     * @param name      the metric name
+     * @param suffix    the suffix of the metric name, or {@code null}
+     * @param timestamp the timestamp of the measurement
+     * @param value     the value of the measurement
+     * @param tags      the encoded tags of the metric, or an empty string for none
+     * @return {@code this}
+     */
+    public LineEncoder line(String prefix, String name, String suffix, long timestamp, double value, String tags) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        writeName(prefix, name, suffix);
+        put(' ');
+        timestamp(timestamp);
+        put(' ');
+        number(value);
+        writeTags(tags);
+        return endLine();
+    }
+
+    /**
+     * Encodes a measurement with a value already formatted as a string, which is sanitized like
+     * a name.
+     *
+     * @param name      the metric name
+     * @param timestamp the timestamp of the measurement
+     * @param value     the value of the measurement
+     * @param tags      the encoded tags of the metric, or an empty string for none
+     * @return {@code this}
+     */
+    public LineEncoder line(String name, long timestamp, String value, String tags) {
+        sanitized(name);
+        put(' ');
+        timestamp(timestamp);
+        put(' ');
+        sanitized(value);
+        writeTags(tags);
+        return endLine();
+    }
+
+    /**
+     * Encodes a measurement with a whole number value under a name and tags already encoded by
+     * {@link #name(String, String, String)} and {@link #tags(String)}.
+     *
+     * @param name      the encoded metric name
+     * @param timestamp the timestamp of the measurement
+     * @param value     the value of the measurement
+     * @param tags      the encoded tags of the metric
+     * @return {@code this}
+     */
+    public LineEncoder line(byte[] name, long timestamp, long value, byte[] tags) {
+        put(name);
+        put(' ');
+        timestamp(timestamp);
+        put(' ');
+        number(value);
+        put(tags);
+        return endLine();
+    }
+
+    /**
+     * Encodes a measurement with a decimal value under a name and tags already encoded by
+     * {@link #name(String, String, String)} and {@link #tags(String)}, unless it is {@code NaN}
+     * or infinite.
+     *
+     * @param name      the encoded metric name
+     * @param timestamp the timestamp of the measurement
+     * @param value     the value of the measurement
+     * @param tags      the encoded tags of the metric
+     * @return {@code this}
+     */
+    public LineEncoder line(byte[] name, long timestamp, double value, byte[] tags) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        put(name);
+        put(' ');
+        timestamp(timestamp);
+        put(' ');
+        number(value);
+        put(tags);
+        return endLine();
+    }
+
+    /**
+     * Encodes a metric name once, so it can be written into any number of lines without being
+     * joined and sanitized again.
+     *
+     * @param prefix the prefix of the metric name, or {@code null}
+     * @param name   the metric name
+     * @param suffix the suffix of the metric name, or {@code null}
+     * @return the encoded name
+     */
+    public byte[] name(String prefix, String name, String suffix) {
+        final int start = buffer.position();
+        writeName(prefix, name, suffix);
+        return cut(start);
+    }
+
+    /**
+     * Encodes the tags of a metric once, including the space which separates them from the
+     * value, so they can be written into any number of lines.
+     *
+     * @param tags the encoded tags of the metric, or an empty string for none
+     * @return the encoded tags
+     */
+    public byte[] tags(String tags) {
+        final int start = buffer.position();
+        writeTags(tags);
+        return cut(start);
+    }
+
+    /**
+     * Returns the number of bytes encoded.
+     *
+     * @return the number of bytes encoded
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Returns the number of lines encoded.
+     *
+     * @return the number of lines encoded
+     */
+    public int lines() {
+        return lines;
+    }
+
+    /**
+     * Returns the buffer the lines are encoded into, positioned after the last byte.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Writes the encoded lines to the given stream and clears the encoder.
+     *
+     * @param out the stream to write to
+     * @throws IOException if there was an error writing
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Discards the encoded lines.
+     */
+    public void clear() {
+        buffer.clear();
+        lines = 0;
+    }
+
+    /**
+     * Copies out the bytes written since the given position, and discards them from the buffer.
+     */
+    private byte[] cut(int start) {
+        final byte[] bytes = new byte[buffer.position() - start];
+        buffer.position(start);
+        buffer.get(bytes);
+        buffer.position(start);
+        return bytes;
+    }
+
+    private LineEncoder endLine() {
+        put('\n');
+        lines++;
+        return this;
+    }
+
+    /**
+     * Writes the components of a name joined by dots, skipping empty ones, as
+     * {@link com.codahale.metrics.MetricRegistry#name(String, String...)} would.
+     */
+    private void writeName(String prefix, String name, String suffix) {
+        boolean first = true;
+        if (prefix != null && prefix.length() > 0) {
+            sanitized(prefix);
+            first = false;
+        }
+        if (name != null && name.length() > 0) {
+            if (!first) {
+                put('.');
+            }
+            sanitized(name);
+            first = false;
+        }
+        if (suffix != null && suffix.length() > 0) {
+            if (!first) {
+                put('.');
+            }
+            sanitized(suffix);
+        }
+    }
+
+    private void writeTags(String tags) {
+        if (tags != null && tags.length() > 0) {
+            put(' ');
+            chars(tags);
+        }
+    }
+
+    /**
+     * Writes a string, replacing each run of whitespace with a single {@code -}.
+     */
+    private void sanitized(String s) {
+        boolean whitespace = false;
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r') {
+                if (!whitespace) {
+                    put('-');
+                }
+                whitespace = true;
+            } else {
+                whitespace = false;
+                i = character(s, i);
+            }
+        }
+    }
+
+    private void chars(String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            i = character(s, i);
+        }
+    }
+
+    /**
+     * Writes the character at the given index, and returns the index of its last char, which
+     * differs for surrogate pairs.
+     */
+    private int character(String s, int i) {
+        final char c = s.charAt(i);
+        if (c < 0x80) {
+            put(c);
+            return i;
+        }
+        if (!utf8) {
+            final int end = Character.isHighSurrogate(c) && i + 1 < s.length() ? i + 2 : i + 1;
+            final byte[] encoded = s.substring(i, end).getBytes(charset);
+            ensure(encoded.length);
+            buffer.put(encoded);
+            return end - 1;
+        }
+        ensure(4);
+        if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buffer.put((byte) (0xF0 | (cp >> 18)));
+            buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (cp & 0x3F)));
+            return i + 1;
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        return i;
+    }
+
+    /**
+     * Writes a timestamp, copying the digits of the last one when it is the same, as it is for
+     * most lines of a report.
+     */
+    private void timestamp(long t) {
+        if (t != stamped) {
+            if (t < 0) {
+                number(t);
+                return;
+            }
+            long n = t;
+            int count = 0;
+            do {
+                digits[count++] = (byte) ('0' + (n % 10));
+                n /= 10;
+            } while (n > 0);
+            for (int i = 0; i < count; i++) {
+                stamp[i] = digits[count - 1 - i];
+            }
+            stampLength = count;
+            stamped = t;
+        }
+        ensure(stampLength);
+        buffer.put(stamp, 0, stampLength);
+    }
+
+    private void number(long n) {
+        if (n == Long.MIN_VALUE) {
+            put(MIN_LONG);
+            return;
+        }
+        if (n < 0) {
+            put('-');
+            n = -n;
+        }
+        digits(n, 1);
+    }
+
+    private void number(double v) {
+        final int length = decimals.format(v);
+        ensure(length);
+        buffer.put(decimals.bytes(), 0, length);
+    }
+
+    /**
+     * Writes a non-negative number, padded with zeros to at least the given number of digits.
+     */
+    private void digits(long n, int minDigits) {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + (n % 10));
+            n /= 10;
+        } while (n > 0);
+        while (count < minDigits) {
+            digits[count++] = '0';
+        }
+        ensure(count);
+        while (count > 0) {
+            buffer.put(digits[--count]);
+        }
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buffer.put((byte) c);
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                                                                  buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
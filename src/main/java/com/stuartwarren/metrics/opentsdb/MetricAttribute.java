@@ -0,0 +1,38 @@
+package com.stuartwarren.metrics.opentsdb;
+
+/**
+ * The values reported for counters, histograms, meters and timers, each as a metric named with
+ * its own suffix, e.g. {@code requests.p99}.
+ */
+public enum MetricAttribute {
+    COUNT("count"),
+    MAX("max"),
+    MEAN("mean"),
+    MIN("min"),
+    STDDEV("stddev"),
+    P50("p50"),
+    P75("p75"),
+    P95("p95"),
+    P98("p98"),
+    P99("p99"),
+    P999("p999"),
+    M1_RATE("m1_rate"),
+    M5_RATE("m5_rate"),
+    M15_RATE("m15_rate"),
+    MEAN_RATE("mean_rate");
+
+    private final String suffix;
+
+    MetricAttribute(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * Returns the suffix the attribute is reported with.
+     *
+     * @return the suffix of the attribute
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+}
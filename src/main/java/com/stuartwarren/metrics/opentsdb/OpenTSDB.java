@@ -1,28 +1,40 @@
 package com.stuartwarren.metrics.opentsdb;
 
-import java.io.*;
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
  * A client to a tcollector.
+ * <p>
+ * NB: this class is not threadsafe; to send from several threads, hand the client to a
+ * {@link ConcurrentSender}.
  */
 public class OpenTSDB implements Closeable {
     private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+    private static final Pattern TAG_SEPARATORS = Pattern.compile("[\\s=]+");
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int DEFAULT_BUF_SIZE = UDPOutputStream.DEFAULT_BUFFER_SIZE;
     public static final String DEFAULT_ADDRESS = "127.0.0.1";
     public static final int DEFAULT_PORT = 8953;
 
     private final Charset charset;
+    private final Transport transport;
+    private final LineEncoder encoder;
 
-    private OutputStream outputstream;
-    private InetSocketAddress address;
-    private int bufferSize;
-    private Writer writer;
-    private int failures;
+    private SpillFile spill;
+    private byte[] replay;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong totalFailures = new AtomicLong();
     
     
     /**
@@ -52,28 +64,122 @@ public class OpenTSDB implements Closeable {
      * @param bufferSize    the length of the buffer. Must be at least 1 byte long
      */
     public OpenTSDB(InetSocketAddress address, Charset charset, int bufferSize){
+        this(address, charset, bufferSize, false);
+    }
+
+    /**
+     * Creates a new client which connects to the given address using the given
+     * character set, optionally packing as many whole lines as fit into each
+     * datagram instead of sending one datagram per measurement.
+     *
+     * @param address       the address of the Carbon server
+     * @param charset       the character set used by the server
+     * @param bufferSize    the length of the buffer, and so the largest datagram payload.
+     *                      Must be at least 1 byte long
+     * @param packLines     whether to pack lines into datagrams until the next one would not
+     *                      fit, only sending a partly filled datagram when the client is closed
+     * @see UDPOutputStream#ETHERNET_PAYLOAD_SIZE
+     */
+    public OpenTSDB(InetSocketAddress address, Charset charset, int bufferSize, boolean packLines){
+        this(udp(address, bufferSize, packLines), charset);
+    }
+
+    /**
+     * Creates a new client which shares measurements out over udp_bridge tcollectors at the
+     * given addresses, e.g. {@link Routing#consistentHash()} to send each metric to the same one.
+     * Each datagram holds as many whole lines as fit in an Ethernet frame.
+     *
+     * @param addresses     the addresses of the tcollectors
+     * @param routing       the routing which decides the address of each measurement
+     * @see ShardedTransport
+     */
+    public OpenTSDB(List<InetSocketAddress> addresses, Routing routing){
+        this(sharded(addresses, routing), UTF_8);
+    }
+
+    /**
+     * Creates a new client which sends measurements over the given transport, e.g. a
+     * {@link TelnetOutputStream} writing straight to a TSD.
+     *
+     * @param transport     the transport to send measurements over
+     */
+    public OpenTSDB(Transport transport){
+        this(transport, UTF_8);
+    }
+
+    /**
+     * Creates a new client which sends measurements over the given transport using the given
+     * character set.
+     *
+     * @param transport     the transport to send measurements over
+     * @param charset       the character set used by the server
+     */
+    public OpenTSDB(Transport transport, Charset charset){
+        this.transport = transport;
         this.charset = charset;
-        this.address = address;
-        this.bufferSize = bufferSize;
+        this.encoder = newEncoder();
+    }
+
+    private static Transport sharded(List<InetSocketAddress> addresses, Routing routing) {
+        final List<Transport> endpoints = new ArrayList<Transport>(addresses.size());
+        for (InetSocketAddress address : addresses) {
+            endpoints.add(udp(address, UDPOutputStream.ETHERNET_PAYLOAD_SIZE, true));
+        }
+        return new ShardedTransport(endpoints, routing);
+    }
+
+    /**
+     * Keeps the lines of failed writes, and those the transport still held when a flush failed,
+     * in the given spill file, and replays them, at the spill file's replay rate, after later
+     * writes succeed. Replayed lines are only removed from the spill file once flushed. The spill
+     * file is written out when the client is closed.
+     *
+     * @param spill     the spill file to keep failed lines in, or {@code null} to drop them
+     */
+    public void setSpillFile(SpillFile spill) {
+        this.spill = spill;
+        this.replay = spill == null ? null : new byte[LineEncoder.DEFAULT_CAPACITY];
+    }
+
+    /**
+     * Returns the spill file failed lines are kept in.
+     *
+     * @return the spill file, or {@code null} if failed lines are dropped
+     */
+    public SpillFile getSpillFile() {
+        return spill;
+    }
+
+    private static Transport udp(InetSocketAddress address, int bufferSize, boolean packLines) {
+        final UDPOutputStream udp = new UDPOutputStream(bufferSize);
+        udp.setAddress(address.getAddress(), address.getPort());
+        udp.setLinePacking(packLines);
+        return udp;
     }
 
     /**
-     * Creates a connection.
+     * Opens the connection if it is not already open. The connection is kept open and reused
+     * until {@link #close()} is called, and the transport re-establishes it after a failed write,
+     * so calling this before every report is cheap.
+     *
      * @throws SocketException       if the socket could not be opened, or the socket could not bind to the specified local port.
-     * @throws IllegalStateException if the client is already connected
      * @throws IOException           if there is an error connecting
      */
     public void connect() throws SocketException, IOException{
-        if (writer != null) {
-            throw new IllegalStateException("Already connected");
-        }
-        //TODO: could probably be simplified to just send UDPDatagrams rather that use an OutputStream
-        outputstream = new UDPOutputStream(address.getAddress(), address.getPort(), bufferSize);
-        writer = new BufferedWriter(new OutputStreamWriter(outputstream, charset));
+        transport.connect();
+    }
+
+    /**
+     * Returns whether the client holds an open connection.
+     *
+     * @return {@code true} if the client is connected
+     */
+    public boolean isConnected() {
+        return transport.isConnected();
     }
 
     /**
-     * Sends the given measurement to the server.
+     * Sends the given measurement to the server, connecting first if needed.
      *
      * @param name      the name of the metric
      * @param value     the value of the metric
@@ -81,42 +187,289 @@ public class OpenTSDB implements Closeable {
      * @throws IOException if there was an error sending the metric
      */
     public void send(String name, String value, long timestamp) throws IOException {
+        send(name, value, timestamp, "");
+    }
+
+    /**
+     * Sends the given measurement with the given tags to the server, connecting first if needed.
+     *
+     * @param name      the name of the metric
+     * @param value     the value of the metric
+     * @param timestamp the timestamp of the metric
+     * @param tags      the tags of the metric
+     * @throws IOException if there was an error sending the metric
+     */
+    public void send(String name, String value, long timestamp, Map<String, String> tags) throws IOException {
+        send(name, value, timestamp, encodeTags(tags));
+    }
+
+    /**
+     * Sends the given measurement with tags already encoded by {@link #encodeTags(Map)} to the
+     * server, connecting first if needed. Encoding the tags of a metric once and reusing them
+     * saves the work of doing so for every measurement.
+     *
+     * @param name      the name of the metric
+     * @param value     the value of the metric
+     * @param timestamp the timestamp of the metric
+     * @param tags      the encoded tags of the metric, or an empty string for none
+     * @throws IOException if there was an error sending the metric
+     */
+    public void send(String name, String value, long timestamp, String tags) throws IOException {
+        encoder.line(sanitize(name), timestamp, sanitize(value), tags);
+        if (transport.flushesEachLine() || encoder.size() >= LineEncoder.DEFAULT_CAPACITY) {
+            send(encoder);
+        }
+    }
+
+    /**
+     * Sends the lines encoded by the given encoder to the server, connecting first if needed, and
+     * clears the encoder. This is the cheapest way to send many measurements.
+     *
+     * @param lines     an encoder holding whole lines
+     * @throws IOException if there was an error sending the lines
+     * @see #newEncoder()
+     */
+    public void send(LineEncoder lines) throws IOException {
         try {
-            writer.write(sanitize(name));
-            writer.write(' ');
-            writer.write(Long.toString(timestamp));
-            writer.write(' ');
-            writer.write(sanitize(value));
-            //TODO: add optional tags here
-            writer.write('\n');
-            writer.flush();
-            this.failures = 0;
+            connect();
+            final ByteBuffer buffer = lines.buffer();
+            if (transport.flushesEachLine()) {
+                sendEachLine(buffer.array(), buffer.arrayOffset(), buffer.position());
+            } else {
+                transport.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            }
+            lines.clear();
+            failures.set(0);
         } catch (IOException e) {
-            failures++;
+            failed(lines);
             throw e;
         }
+        if (spill != null && !spill.isEmpty()) {
+            replay();
+        }
     }
 
     /**
-     * Returns the number of failed writes to the server.
+     * Returns a new encoder for lines to pass to {@link #send(LineEncoder)}, using the client's
+     * character set.
      *
-     * @return the number of failed writes to the server
+     * @return a new {@link LineEncoder}
+     */
+    public LineEncoder newEncoder() {
+        return newEncoder(DecimalFormatter.DEFAULT_DECIMALS);
+    }
+
+    /**
+     * Returns a new encoder for lines to pass to {@link #send(LineEncoder)}, using the client's
+     * character set and writing doubles with the given number of decimal places.
+     *
+     * @param decimals the number of decimal places doubles are written with
+     * @return a new {@link LineEncoder}
+     */
+    public LineEncoder newEncoder(int decimals) {
+        return new LineEncoder(LineEncoder.DEFAULT_CAPACITY, charset, decimals);
+    }
+
+    /**
+     * Encodes the given tags as they are sent to the server, i.e. {@code key=value} pairs
+     * separated by spaces.
+     *
+     * @param tags the tags to encode
+     * @return the encoded tags, or an empty string if there are none
+     */
+    public static String encodeTags(Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return "";
+        }
+        final StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (encoded.length() > 0) {
+                encoded.append(' ');
+            }
+            encoded.append(sanitizeTag(tag.getKey())).append('=').append(sanitizeTag(tag.getValue()));
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Sends any measurements still buffered, leaving the connection open. Call this at the end
+     * of each report.
+     *
+     * @throws IOException if there was an error sending the measurements
+     */
+    public void flush() throws IOException {
+        if (encoder.size() > 0) {
+            send(encoder);
+        }
+        try {
+            transport.flush();
+        } catch (IOException e) {
+            failed(null);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of failed writes to the server since the last successful one.
+     *
+     * @return the number of consecutive failed writes to the server
      */
     public int getFailures() {
-        return failures;
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of failed writes to the server since the client was created.
+     *
+     * @return the total number of failed writes to the server
+     */
+    public long getTotalFailures() {
+        return totalFailures.get();
+    }
+
+    /**
+     * Returns the number of datagrams, writes or requests sent to the server.
+     *
+     * @return the number of packets sent to the server
+     */
+    public long getPacketsSent() {
+        return transport.getPacketsSent();
+    }
+
+    /**
+     * Returns the number of payload bytes sent to the server.
+     *
+     * @return the number of payload bytes sent to the server
+     */
+    public long getBytesSent() {
+        return transport.getBytesSent();
+    }
+
+    /**
+     * Limits the rate the transport sends packets at, where it supports pacing.
+     *
+     * @param packetsPerSecond the most packets to send per second, or 0 for no limit
+     * @param bytesPerSecond   the most payload bytes to send per second, or 0 for no limit
+     * @see Transport#setPacing(long, long)
+     */
+    public void setPacing(long packetsPerSecond, long bytesPerSecond) {
+        transport.setPacing(packetsPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * Returns the total time packets have waited to be paced.
+     *
+     * @return the pacing delay, in nanoseconds
+     */
+    public long getPacingDelay() {
+        return transport.getPacingDelay();
     }
 
+    /**
+     * Sends any buffered measurements and closes the connection.
+     *
+     * @throws IOException if there was an error sending the measurements
+     */
     @Override
     public void close() throws IOException {
-        if (writer != null) {
-            writer.flush();
-            outputstream.close();
-            writer.close();
+        try {
+            if (encoder.size() > 0 || transport.isConnected()) {
+                flush();
+            }
+        } finally {
+            encoder.clear();
+            transport.close();
+            if (spill != null) {
+                spill.close();
+            }
         }
-        writer = null;
     }
 
+    /**
+     * Sends as many spilled lines as the spill file's replay rate allows, removing them from the
+     * spill file once flushed.
+     */
+    private void replay() throws IOException {
+        final int length = spill.read(replay);
+        if (length == 0) {
+            return;
+        }
+        // send the lines before them first, so a failure below only holds back replayed lines
+        try {
+            transport.flush();
+        } catch (IOException e) {
+            failed(null);
+            throw e;
+        }
+        try {
+            if (transport.flushesEachLine()) {
+                sendEachLine(replay, 0, length);
+            } else {
+                transport.write(replay, 0, length);
+            }
+            transport.flush();
+        } catch (IOException e) {
+            // the lines are still in the spill file, to be replayed once the server is back
+            failures.incrementAndGet();
+            totalFailures.incrementAndGet();
+            transport.spillUnsent(null);
+            throw e;
+        }
+        spill.commit(length);
+    }
+
+    private void sendEachLine(byte[] bytes, int offset, int length) throws IOException {
+        final int end = offset + length;
+        int start = offset;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                transport.write(bytes, start, i + 1 - start);
+                transport.flush();
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Counts a failed write or flush and, with a spill file, keeps the lines the transport still
+     * holds followed by the given lines of a broken write, if there are any. Lines the transport
+     * took from a broken write before failing may be kept twice; OpenTSDB stores a repeated
+     * point once.
+     */
+    private void failed(LineEncoder lines) {
+        failures.incrementAndGet();
+        totalFailures.incrementAndGet();
+        if (spill != null) {
+            transport.spillUnsent(spill);
+            if (lines != null) {
+                final ByteBuffer buffer = lines.buffer();
+                spill.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            }
+        }
+        if (lines != null) {
+            // the lines belong to a broken write; start afresh
+            lines.clear();
+        }
+    }
+
+    /**
+     * Sanitizes the name or value of a measurement sent as strings, replacing each run of
+     * whitespace with a single {@code -}. Lines encoded by a {@link LineEncoder} are sanitized
+     * the same way as they are written, without calling this.
+     *
+     * @param s a name or value
+     * @return the sanitized string, or {@code s} itself if it has no whitespace
+     */
     protected String sanitize(String s) {
-        return WHITESPACE.matcher(s).replaceAll("-");
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return WHITESPACE.matcher(s).replaceAll("-");
+            }
+        }
+        return s;
+    }
+
+    private static String sanitizeTag(String s) {
+        return TAG_SEPARATORS.matcher(s).replaceAll("-");
     }
 }
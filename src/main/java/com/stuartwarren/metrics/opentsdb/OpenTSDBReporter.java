@@ -5,10 +5,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
 
 /**
  * A reporter which publishes metric values to a tcollector.
@@ -27,9 +46,19 @@ public class OpenTSDBReporter extends ScheduledReporter {
     }
 
     /**
-     * A builder for {@link OpenTSDBReporter} instances. Defaults to not using a prefix, using the
-     * default clock, converting rates to events/second, converting durations to milliseconds, and
-     * not filtering metrics.
+     * A builder for {@link OpenTSDBReporter} instances. By default the reporter:
+     * <ul>
+     *     <li>reports every metric, and every {@link MetricAttribute} of it, with no prefix or
+     *     tags, using the default clock</li>
+     *     <li>converts rates to events/second and durations to milliseconds, and writes decimals
+     *     with two decimal places</li>
+     *     <li>caches the names of up to {@link #DEFAULT_NAME_CACHE_SIZE} metrics, and admits new
+     *     names without limit</li>
+     *     <li>sends every value on every report, at full resolution, timestamped with the second
+     *     the report started</li>
+     *     <li>snapshots and sends on the reporting thread, without pacing, and does not measure
+     *     itself</li>
+     * </ul>
      */
     public static class Builder {
         private final MetricRegistry registry;
@@ -38,6 +67,32 @@ public class OpenTSDBReporter extends ScheduledReporter {
         private TimeUnit rateUnit;
         private TimeUnit durationUnit;
         private MetricFilter filter;
+        private final Map<String, String> tags;
+        private TagExtractor tagExtractor;
+        private int nameCacheSize;
+        private int decimals;
+        private int queueSize;
+        private OverflowPolicy overflowPolicy;
+        private int snapshotThreads;
+        private long heartbeat;
+        private boolean counterDeltas;
+        private Set<MetricAttribute> histogramAttributes;
+        private Set<MetricAttribute> meterAttributes;
+        private Set<MetricAttribute> timerAttributes;
+        private final Map<Pattern, Set<MetricAttribute>> attributeOverrides;
+        private final List<Downsampling> downsampling;
+        private MetricRegistry instrumentation;
+        private String instrumentationName;
+        private boolean reportOwnMetrics;
+        private double pacing;
+        private boolean millisecondTimestamps;
+        private boolean timestampEachMetric;
+        private int newSeriesPerWindow;
+        private long cardinalityWindow;
+        private CardinalityOverflow cardinalityOverflow;
+        private int maxSeries;
+        private int cardinalityPrefixSegments;
+        private boolean streaming;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
@@ -46,6 +101,32 @@ public class OpenTSDBReporter extends ScheduledReporter {
             this.rateUnit = TimeUnit.SECONDS;
             this.durationUnit = TimeUnit.MILLISECONDS;
             this.filter = MetricFilter.ALL;
+            this.tags = new LinkedHashMap<String, String>();
+            this.tagExtractor = TagExtractor.NONE;
+            this.nameCacheSize = DEFAULT_NAME_CACHE_SIZE;
+            this.decimals = DecimalFormatter.DEFAULT_DECIMALS;
+            this.queueSize = 0;
+            this.overflowPolicy = OverflowPolicy.DROP_OLDEST;
+            this.snapshotThreads = 0;
+            this.heartbeat = 0;
+            this.counterDeltas = false;
+            this.histogramAttributes = EnumSet.allOf(MetricAttribute.class);
+            this.meterAttributes = EnumSet.allOf(MetricAttribute.class);
+            this.timerAttributes = EnumSet.allOf(MetricAttribute.class);
+            this.attributeOverrides = new LinkedHashMap<Pattern, Set<MetricAttribute>>();
+            this.downsampling = new ArrayList<Downsampling>();
+            this.instrumentation = null;
+            this.instrumentationName = DEFAULT_INSTRUMENTATION_NAME;
+            this.reportOwnMetrics = false;
+            this.pacing = 0;
+            this.millisecondTimestamps = false;
+            this.timestampEachMetric = false;
+            this.newSeriesPerWindow = 0;
+            this.cardinalityWindow = 0;
+            this.cardinalityOverflow = CardinalityOverflow.DROP;
+            this.maxSeries = DEFAULT_MAX_SERIES;
+            this.cardinalityPrefixSegments = DEFAULT_CARDINALITY_PREFIX_SEGMENTS;
+            this.streaming = false;
         }
 
         /**
@@ -103,6 +184,387 @@ public class OpenTSDBReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * Tag all metrics with the given tag, e.g. the host, data centre or service.
+         *
+         * @param name  the name of the tag
+         * @param value the value of the tag
+         * @return {@code this}
+         */
+        public Builder withTag(String name, String value) {
+            this.tags.put(name, value);
+            return this;
+        }
+
+        /**
+         * Tag all metrics with the given tags.
+         *
+         * @param tags the tags for all metrics
+         * @return {@code this}
+         */
+        public Builder withTags(Map<String, String> tags) {
+            this.tags.putAll(tags);
+            return this;
+        }
+
+        /**
+         * Split metric names into a metric name and tags with the given {@link TagExtractor}.
+         * Extracted tags take precedence over tags given to {@link #withTag(String, String)}.
+         *
+         * @param tagExtractor a {@link TagExtractor}
+         * @return {@code this}
+         */
+        public Builder extractTagsWith(TagExtractor tagExtractor) {
+            this.tagExtractor = tagExtractor;
+            return this;
+        }
+
+        /**
+         * Cache the encoded names and tags of at most the given number of metrics. Metrics beyond
+         * that are encoded afresh on every report.
+         *
+         * @param nameCacheSize the most metrics to cache names for
+         * @return {@code this}
+         */
+        public Builder withNameCacheSize(int nameCacheSize) {
+            this.nameCacheSize = nameCacheSize;
+            return this;
+        }
+
+        /**
+         * Write decimal values, such as rates, means and percentiles, with the given number of
+         * decimal places.
+         *
+         * @param decimals the number of decimal places
+         * @return {@code this}
+         */
+        public Builder withDecimalPlaces(int decimals) {
+            this.decimals = decimals;
+            return this;
+        }
+
+        /**
+         * Send metrics on a thread of their own, so the reporting thread only takes measurements
+         * and a slow connection to OpenTSDB cannot delay the next report. Batches of up to
+         * {@link LineEncoder#DEFAULT_CAPACITY} bytes wait to be sent in a queue of the given size.
+         *
+         * @param queueSize      the most batches waiting to be sent
+         * @param overflowPolicy which batch to drop when the queue is full
+         * @return {@code this}
+         */
+        public Builder sendAsynchronously(int queueSize, OverflowPolicy overflowPolicy) {
+            if (queueSize < 1) {
+                throw new IllegalArgumentException("queueSize must be positive");
+            }
+            this.queueSize = queueSize;
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Snapshot and encode metrics on the given number of threads when there are at least
+         * {@link #PARALLEL_THRESHOLD} of them, which pays off for registries with many timers and
+         * histograms, as every snapshot sorts its reservoir. The metrics are split into as many
+         * runs as there are threads, and each run is sent as one batch, in order.
+         *
+         * @param threads the number of threads to snapshot metrics on
+         * @return {@code this}
+         */
+        public Builder snapshotInParallel(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be positive");
+            }
+            this.snapshotThreads = threads;
+            return this;
+        }
+
+        /**
+         * Only send a value when it differs from the value last sent for the same metric, or when
+         * it was last sent at least the given heartbeat ago, so the TSD still sees idle series.
+         * The last values are kept alongside the cached names, so the name cache must be big
+         * enough to hold every metric.
+         *
+         * @param heartbeat the longest time between sending unchanged values
+         * @param unit      the unit of {@code heartbeat}
+         * @return {@code this}
+         * @see #withNameCacheSize(int)
+         */
+        public Builder suppressUnchangedValues(long heartbeat, TimeUnit unit) {
+            final long seconds = unit.toSeconds(heartbeat);
+            if (seconds < 1) {
+                throw new IllegalArgumentException("heartbeat must be at least a second");
+            }
+            this.heartbeat = seconds;
+            return this;
+        }
+
+        /**
+         * Report each counter's {@code count} as the change since the previous report rather than
+         * its cumulative value. A counter's first report only records its count. The previous
+         * counts are kept alongside the cached names, and counters beyond the name cache have none
+         * and are not reported, so the name cache must be big enough to hold every metric.
+         *
+         * @return {@code this}
+         * @see #withNameCacheSize(int)
+         */
+        public Builder reportCounterDeltas() {
+            this.counterDeltas = true;
+            return this;
+        }
+
+        /**
+         * Only report the given attributes of histograms. Histograms are not snapshotted at all
+         * unless a statistic of their distribution is reported.
+         *
+         * @param attributes the attributes to report
+         * @return {@code this}
+         */
+        public Builder withHistogramAttributes(Set<MetricAttribute> attributes) {
+            this.histogramAttributes = copyOf(attributes);
+            return this;
+        }
+
+        /**
+         * Only report the given attributes of meters.
+         *
+         * @param attributes the attributes to report
+         * @return {@code this}
+         */
+        public Builder withMeterAttributes(Set<MetricAttribute> attributes) {
+            this.meterAttributes = copyOf(attributes);
+            return this;
+        }
+
+        /**
+         * Only report the given attributes of timers. Timers are not snapshotted at all unless a
+         * statistic of their distribution is reported.
+         *
+         * @param attributes the attributes to report
+         * @return {@code this}
+         */
+        public Builder withTimerAttributes(Set<MetricAttribute> attributes) {
+            this.timerAttributes = copyOf(attributes);
+            return this;
+        }
+
+        /**
+         * Only report the given attributes of counters, histograms, meters and timers whose whole
+         * name matches the given pattern, instead of the attributes for their type. The first
+         * matching pattern applies.
+         *
+         * @param names      a pattern matching registry names
+         * @param attributes the attributes to report
+         * @return {@code this}
+         */
+        public Builder withAttributes(Pattern names, Set<MetricAttribute> attributes) {
+            this.attributeOverrides.put(names, copyOf(attributes));
+            return this;
+        }
+
+        /**
+         * Send metrics whose whole registry name matches the given pattern at most once per
+         * interval, combining the values taken by each report within an interval with the given
+         * {@link Aggregation}. Intervals are aligned to multiples of their length, and each is sent
+         * once the first report after it, timestamped with its start. Patterns given to this and
+         * {@link #withoutDownsampling(Pattern)} are tried in order, and the first match applies.
+         * <p>
+         * The running aggregates are kept alongside the cached names, so metrics beyond the name
+         * cache are sent at full resolution.
+         *
+         * @param names       a pattern matching registry names
+         * @param interval    the interval to send values at, at least a second
+         * @param unit        the unit of {@code interval}
+         * @param aggregation how values within an interval are combined
+         * @return {@code this}
+         * @see #withNameCacheSize(int)
+         */
+        public Builder downsample(Pattern names, long interval, TimeUnit unit, Aggregation aggregation) {
+            final long seconds = unit.toSeconds(interval);
+            if (seconds < 1) {
+                throw new IllegalArgumentException("interval must be at least a second");
+            }
+            this.downsampling.add(new Downsampling(names, seconds, aggregation));
+            return this;
+        }
+
+        /**
+         * Send metrics whose whole registry name matches the given pattern on every report, even
+         * if a later pattern given to {@link #downsample(Pattern, long, TimeUnit, Aggregation)}
+         * matches them too.
+         *
+         * @param names a pattern matching registry names
+         * @return {@code this}
+         */
+        public Builder withoutDownsampling(Pattern names) {
+            this.downsampling.add(new Downsampling(names, 0, null));
+            return this;
+        }
+
+        /**
+         * Register metrics about the reporter's own reports, such as how long they take, how much
+         * they send and how often they fail, in the given registry under
+         * {@link OpenTSDBReporter#DEFAULT_INSTRUMENTATION_NAME}. Unless {@link #reportOwnMetrics()} is called
+         * they are left out of the reports.
+         *
+         * @param metrics the registry to register the reporter's metrics in
+         * @return {@code this}
+         */
+        public Builder instrumentWith(MetricRegistry metrics) {
+            return instrumentWith(metrics, DEFAULT_INSTRUMENTATION_NAME);
+        }
+
+        /**
+         * Register metrics about the reporter's own reports in the given registry under the given
+         * name, e.g. to tell apart several reporters instrumented in one registry.
+         *
+         * @param metrics the registry to register the reporter's metrics in
+         * @param name    the name the metrics are registered under
+         * @return {@code this}
+         * @see #instrumentWith(MetricRegistry)
+         */
+        public Builder instrumentWith(MetricRegistry metrics, String name) {
+            this.instrumentation = metrics;
+            this.instrumentationName = name;
+            return this;
+        }
+
+        /**
+         * Report the reporter's own metrics along with the rest, when they are registered in the
+         * registry being reported.
+         *
+         * @return {@code this}
+         * @see #instrumentWith(MetricRegistry)
+         */
+        public Builder reportOwnMetrics() {
+            this.reportOwnMetrics = true;
+            return this;
+        }
+
+        /**
+         * Pace sending so that each report is spread over the given fraction of the reporting
+         * period, rather than sent in one burst which can overflow the receiver's socket buffer.
+         * The packet and byte rates are worked out from what the client sent over the previous
+         * period, so the first report is sent unpaced.
+         *
+         * @param fraction the fraction of the period to spread a report over, greater than 0 and
+         *                 at most 1
+         * @return {@code this}
+         * @see Transport#setPacing(long, long)
+         */
+        public Builder paceOver(double fraction) {
+            if (fraction <= 0 || fraction > 1) {
+                throw new IllegalArgumentException("fraction must be greater than 0 and at most 1");
+            }
+            this.pacing = fraction;
+            return this;
+        }
+
+        /**
+         * Timestamp measurements in milliseconds rather than seconds, which OpenTSDB 2.x accepts,
+         * so reports within the same second do not overwrite each other.
+         *
+         * @return {@code this}
+         */
+        public Builder withMillisecondTimestamps() {
+            this.millisecondTimestamps = true;
+            return this;
+        }
+
+        /**
+         * Timestamp each metric's measurements with the time it is snapshotted, rather than every
+         * measurement with the start of the report, for reports which take long enough for the
+         * difference to matter. Best combined with {@link #withMillisecondTimestamps()}.
+         *
+         * @return {@code this}
+         */
+        public Builder timestampEachMetric() {
+            this.timestampEachMetric = true;
+            return this;
+        }
+
+        /**
+         * Limit the number of metric names reported for the first time, per prefix and window,
+         * e.g. to keep a bug which puts request ids into names from creating a series for each
+         * request. Names over the limit are dropped, or collapsed into one overflow point per
+         * prefix and report counting them, and tried again in later windows; names reported
+         * before are never held back. Prefixes are the first
+         * {@link #DEFAULT_CARDINALITY_PREFIX_SEGMENTS} dot-separated segments of the registry name
+         * unless {@link #groupCardinalityBy(int)} says otherwise, and at most
+         * {@link #DEFAULT_MAX_SERIES} names are admitted in all unless {@link #limitSeries(int)}
+         * says otherwise.
+         *
+         * @param perWindow the most new names each prefix may add per window
+         * @param window    the length of the window
+         * @param unit      the unit of {@code window}
+         * @param overflow  what to do with the names over the limit
+         * @return {@code this}
+         * @see OpenTSDBReporter#getNamesRejected()
+         */
+        public Builder limitNewSeries(int perWindow, long window, TimeUnit unit, CardinalityOverflow overflow) {
+            if (perWindow < 1) {
+                throw new IllegalArgumentException("perWindow must be positive");
+            }
+            if (unit.toMillis(window) < 1) {
+                throw new IllegalArgumentException("window must be at least a millisecond");
+            }
+            this.newSeriesPerWindow = perWindow;
+            this.cardinalityWindow = unit.toMillis(window);
+            this.cardinalityOverflow = overflow;
+            return this;
+        }
+
+        /**
+         * Limit the number of distinct metric names reported at all, once
+         * {@link #limitNewSeries(int, long, TimeUnit, CardinalityOverflow)} is in force.
+         *
+         * @param maxSeries the most names to admit
+         * @return {@code this}
+         */
+        public Builder limitSeries(int maxSeries) {
+            if (maxSeries < 1) {
+                throw new IllegalArgumentException("maxSeries must be positive");
+            }
+            this.maxSeries = maxSeries;
+            return this;
+        }
+
+        /**
+         * Group metric names by their first given number of dot-separated segments when limiting
+         * new names.
+         *
+         * @param segments the number of segments in a prefix
+         * @return {@code this}
+         * @see #limitNewSeries(int, long, TimeUnit, CardinalityOverflow)
+         */
+        public Builder groupCardinalityBy(int segments) {
+            if (segments < 1) {
+                throw new IllegalArgumentException("segments must be positive");
+            }
+            this.cardinalityPrefixSegments = segments;
+            return this;
+        }
+
+        /**
+         * Report by walking a plan of the metrics which pass the filter, rather than having the
+         * registry copy them into five sorted maps first, which for large registries is most of
+         * what a report allocates. The plan, which keeps each metric's kind and series, is kept
+         * up to date as metrics are added and removed, one metric at a time, and the filter is
+         * only asked about a metric when it is added. Metrics are reported in no particular order
+         * rather than by type and name.
+         *
+         * @return {@code this}
+         */
+        public Builder streamReports() {
+            this.streaming = true;
+            return this;
+        }
+
+        private static Set<MetricAttribute> copyOf(Set<MetricAttribute> attributes) {
+            final Set<MetricAttribute> copy = EnumSet.noneOf(MetricAttribute.class);
+            copy.addAll(attributes);
+            return copy;
+        }
+
         /**
          * Builds a {@link OpenTSDBReporter} with the given properties, sending metrics using the
          * given {@link OpenTSDB} client.
@@ -111,21 +573,175 @@ public class OpenTSDBReporter extends ScheduledReporter {
          * @return a {@link OpenTSDBReporter}
          */
         public OpenTSDBReporter build(OpenTSDB opentsdb) {
+            return build(opentsdb, null);
+        }
+
+        /**
+         * Builds a {@link OpenTSDBReporter} with the given properties which reports on the given
+         * hub's threads and sends metrics through the hub's client and send queue, which it shares
+         * with the hub's other reporters. {@link #sendAsynchronously(int, OverflowPolicy)} does not
+         * apply, as the hub always sends asynchronously.
+         *
+         * @param hub a {@link ReportingHub}
+         * @return a {@link OpenTSDBReporter}
+         */
+        public OpenTSDBReporter build(ReportingHub hub) {
+            return build(hub.getClient(), hub);
+        }
+
+        private OpenTSDBReporter build(OpenTSDB opentsdb, ReportingHub hub) {
+            MetricFilter filter = this.filter;
+            if (instrumentation != null && !reportOwnMetrics) {
+                filter = new ExcludingFilter(filter, ReporterMetrics.matching(instrumentationName));
+            }
             return new OpenTSDBReporter(registry,
                                         opentsdb,
                                         clock,
                                         prefix,
                                         rateUnit,
                                         durationUnit,
-                                        filter);
+                                        filter,
+                                        tags,
+                                        tagExtractor,
+                                        nameCacheSize,
+                                        decimals,
+                                        queueSize,
+                                        overflowPolicy,
+                                        snapshotThreads,
+                                        heartbeat,
+                                        counterDeltas,
+                                        histogramAttributes,
+                                        meterAttributes,
+                                        timerAttributes,
+                                        attributeOverrides,
+                                        downsampling,
+                                        instrumentation,
+                                        instrumentationName,
+                                        pacing,
+                                        millisecondTimestamps,
+                                        timestampEachMetric,
+                                        newSeriesPerWindow == 0 ? null :
+                                                new CardinalityGuard(newSeriesPerWindow,
+                                                                     cardinalityWindow,
+                                                                     maxSeries,
+                                                                     cardinalityPrefixSegments,
+                                                                     clock),
+                                        cardinalityOverflow,
+                                        streaming,
+                                        hub);
+        }
+    }
+
+    /**
+     * Matches the metrics one filter matches and another does not.
+     */
+    private static class ExcludingFilter implements MetricFilter {
+        private final MetricFilter filter;
+        private final MetricFilter excluded;
+
+        private ExcludingFilter(MetricFilter filter, MetricFilter excluded) {
+            this.filter = filter;
+            this.excluded = excluded;
+        }
+
+        @Override
+        public boolean matches(String name, Metric metric) {
+            return filter.matches(name, metric) && !excluded.matches(name, metric);
         }
     }
 
+    public static final int DEFAULT_NAME_CACHE_SIZE = 10000;
+
+    /**
+     * The name the reporter's own metrics are registered under by default.
+     */
+    public static final String DEFAULT_INSTRUMENTATION_NAME = "opentsdb-reporter";
+
+    /**
+     * The most metric names admitted in all by default when new names are limited.
+     */
+    public static final int DEFAULT_MAX_SERIES = 100000;
+
+    /**
+     * The number of dot-separated segments of a registry name new names are limited by, by
+     * default.
+     */
+    public static final int DEFAULT_CARDINALITY_PREFIX_SEGMENTS = 2;
+
+    /**
+     * The fewest metrics a report must hold to be snapshotted in parallel, when enabled.
+     */
+    public static final int PARALLEL_THRESHOLD = 256;
+
+    /**
+     * How long {@link #stop()} waits for queued batches to be sent, in milliseconds.
+     */
+    private static final long SENDER_CLOSE_TIMEOUT = 10000;
+
+    private static final String OVERFLOW_SERIES = "cardinality-overflow";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(OpenTSDBReporter.class);
 
+    private static final int COUNTER_ATTRIBUTES = mask(EnumSet.of(MetricAttribute.COUNT));
+    private static final int SNAPSHOT_ATTRIBUTES = mask(EnumSet.range(MetricAttribute.MAX, MetricAttribute.P999));
+    private static final int METER_ATTRIBUTES = mask(EnumSet.of(MetricAttribute.COUNT,
+                                                                MetricAttribute.M1_RATE,
+                                                                MetricAttribute.M5_RATE,
+                                                                MetricAttribute.M15_RATE,
+                                                                MetricAttribute.MEAN_RATE));
+    private static final int HISTOGRAM_ATTRIBUTES = COUNTER_ATTRIBUTES | SNAPSHOT_ATTRIBUTES;
+    private static final int TIMER_ATTRIBUTES = METER_ATTRIBUTES | SNAPSHOT_ATTRIBUTES;
+
+    /**
+     * The slot of a gauge's value among the attributes of a series.
+     */
+    private static final int VALUE = MetricAttribute.values().length;
+    // the kinds of metric a plan reports
+    private static final int GAUGE = 0;
+    private static final int COUNTER = 1;
+    private static final int HISTOGRAM = 2;
+    private static final int METER = 3;
+    private static final int TIMER = 4;
+    private static final int OTHER = 5;
+
+    private final MetricRegistry registry;
     private final OpenTSDB opentsdb;
     private final Clock clock;
     private final String prefix;
+    private final Map<String, String> tags;
+    private final TagExtractor tagExtractor;
+    private final ConcurrentMap<String, Series> series;
+    private final int nameCacheSize;
+    private final MetricRegistryListener evictor;
+    private final ReportingHub hub; // null when reporting on a thread of its own
+    private final AsyncSender sender; // null when sending on the reporting thread
+    private final ExecutorService snapshotter; // null when snapshotting on the reporting thread
+    private final LineEncoder[] runs;
+    private final long heartbeat; // in timestamp units, 0 when sending every value
+    private final long resolution; // timestamp units per second
+    private final boolean timestampEachMetric;
+    private final CardinalityGuard guard; // null when new names are not limited
+    private final CardinalityOverflow cardinalityOverflow;
+    private final MetricFilter filter;
+    private final Queue<Replan> replans; // null unless streaming
+    private final Map<String, Plan> plansByName = new HashMap<String, Plan>();
+    private Plan[] plans = new Plan[0]; // the metrics a streamed report walks
+    private int planned = 0;
+    private final boolean counterDeltas;
+    private final int histogramAttributes;
+    private final int meterAttributes;
+    private final int timerAttributes;
+    private final Pattern[] overridePatterns;
+    private final int[] overrideAttributes;
+    private final Downsampling[] downsampling;
+    private final int decimals;
+    private final ReporterMetrics instruments; // null when not instrumented
+    private final double pacing; // the fraction of the period to spread a report over, or 0
+    private volatile long period = 0; // nanoseconds, once started
+    private long packetsBefore = -1; // the packets sent by the previous report's start
+    private long bytesBefore = 0;
+    private volatile boolean nameCacheFull = false;
+    private LineEncoder encoder;
 
     private OpenTSDBReporter(MetricRegistry registry,
                              OpenTSDB opentsdb,
@@ -133,154 +749,1114 @@ public class OpenTSDBReporter extends ScheduledReporter {
                              String prefix,
                              TimeUnit rateUnit,
                              TimeUnit durationUnit,
-                             MetricFilter filter) {
+                             MetricFilter filter,
+                             Map<String, String> tags,
+                             TagExtractor tagExtractor,
+                             int nameCacheSize,
+                             int decimals,
+                             int queueSize,
+                             OverflowPolicy overflowPolicy,
+                             int snapshotThreads,
+                             long heartbeat,
+                             boolean counterDeltas,
+                             Set<MetricAttribute> histogramAttributes,
+                             Set<MetricAttribute> meterAttributes,
+                             Set<MetricAttribute> timerAttributes,
+                             Map<Pattern, Set<MetricAttribute>> attributeOverrides,
+                             List<Downsampling> downsampling,
+                             MetricRegistry instrumentation,
+                             String instrumentationName,
+                             double pacing,
+                             boolean millisecondTimestamps,
+                             boolean timestampEachMetric,
+                             CardinalityGuard guard,
+                             CardinalityOverflow cardinalityOverflow,
+                             boolean streaming,
+                             ReportingHub hub) {
         super(registry, "opentsdb-reporter", filter, rateUnit, durationUnit);
+        this.registry = registry;
         this.opentsdb = opentsdb;
         this.clock = clock;
         this.prefix = prefix;
+        this.tags = new LinkedHashMap<String, String>(tags);
+        this.tagExtractor = tagExtractor;
+        this.series = new ConcurrentHashMap<String, Series>();
+        this.nameCacheSize = nameCacheSize;
+        this.decimals = decimals;
+        this.hub = hub;
+        if (hub != null) {
+            this.sender = hub.getSender();
+            this.encoder = sender.acquire(decimals);
+        } else if (queueSize > 0) {
+            this.sender = new AsyncSender(opentsdb, decimals, queueSize, overflowPolicy);
+            this.encoder = sender.acquire(decimals);
+        } else {
+            this.sender = null;
+            this.encoder = opentsdb.newEncoder(decimals);
+        }
+        if (snapshotThreads > 0) {
+            this.snapshotter = Executors.newFixedThreadPool(snapshotThreads, new SnapshotThreadFactory());
+            this.runs = new LineEncoder[snapshotThreads];
+            for (int i = 0; i < runs.length; i++) {
+                runs[i] = opentsdb.newEncoder(decimals);
+            }
+        } else {
+            this.snapshotter = null;
+            this.runs = new LineEncoder[0];
+        }
+        this.resolution = millisecondTimestamps ? 1000 : 1;
+        this.heartbeat = heartbeat * resolution;
+        this.timestampEachMetric = timestampEachMetric;
+        this.guard = guard;
+        this.cardinalityOverflow = cardinalityOverflow;
+        this.filter = filter;
+        this.replans = streaming ? new ConcurrentLinkedQueue<Replan>() : null;
+        this.counterDeltas = counterDeltas;
+        this.histogramAttributes = mask(histogramAttributes) & HISTOGRAM_ATTRIBUTES;
+        this.meterAttributes = mask(meterAttributes) & METER_ATTRIBUTES;
+        this.timerAttributes = mask(timerAttributes) & TIMER_ATTRIBUTES;
+        this.overridePatterns = new Pattern[attributeOverrides.size()];
+        this.overrideAttributes = new int[attributeOverrides.size()];
+        int i = 0;
+        for (Map.Entry<Pattern, Set<MetricAttribute>> entry : attributeOverrides.entrySet()) {
+            overridePatterns[i] = entry.getKey();
+            overrideAttributes[i] = mask(entry.getValue());
+            i++;
+        }
+        this.downsampling = downsampling.toArray(new Downsampling[downsampling.size()]);
+        this.instruments = instrumentation == null ? null :
+                new ReporterMetrics(instrumentation, instrumentationName, clock, opentsdb, sender,
+                                    guard);
+        this.pacing = pacing;
+        this.evictor = new Evictor();
+        registry.addListener(evictor);
+    }
+
+    /**
+     * Reports the registry's metrics, walking the plan of them when streaming.
+     */
+    @Override
+    public void report() {
+        if (replans == null) {
+            super.report();
+        } else {
+            stream();
+        }
     }
 
     @Override
-    public void report(SortedMap<String, Gauge> gauges,
+    public synchronized void report(SortedMap<String, Gauge> gauges,
                        SortedMap<String, Counter> counters,
                        SortedMap<String, Histogram> histograms,
                        SortedMap<String, Meter> meters,
                        SortedMap<String, Timer> timers) {
-        final long timestamp = clock.getTime() / 1000;
+        final long timestamp = timestamp();
+        if (instruments != null) {
+            instruments.started();
+        }
+        if (pacing > 0) {
+            pace();
+        }
 
-        // oh it'd be lovely to use Java 7 here
+        // the connection is kept open between reports, and only re-established after a failure
         try {
-            opentsdb.connect();
+            if (sender == null) {
+                opentsdb.connect();
+            }
+
+            final int size = gauges.size() + counters.size() + histograms.size() + meters.size() +
+                    timers.size();
+            if (snapshotter != null && size >= PARALLEL_THRESHOLD) {
+                reportInParallel(gauges, counters, histograms, meters, timers, size, timestamp);
+                return;
+            }
 
             for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-                reportGauge(entry.getKey(), entry.getValue(), timestamp);
+                reportGauge(entry.getKey(), entry.getValue(), stamp(timestamp), encoder);
+                sendIfFull();
             }
 
             for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-                reportCounter(entry.getKey(), entry.getValue(), timestamp);
+                reportCounter(entry.getKey(), entry.getValue(), stamp(timestamp), encoder);
+                sendIfFull();
             }
 
             for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-                reportHistogram(entry.getKey(), entry.getValue(), timestamp);
+                reportHistogram(entry.getKey(), entry.getValue(), stamp(timestamp), encoder);
+                sendIfFull();
             }
 
             for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-                reportMetered(entry.getKey(), entry.getValue(), timestamp);
+                reportMetered(entry.getKey(), entry.getValue(), stamp(timestamp), encoder);
+                sendIfFull();
             }
 
             for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-                reportTimer(entry.getKey(), entry.getValue(), timestamp);
+                reportTimer(entry.getKey(), entry.getValue(), stamp(timestamp), encoder);
+                sendIfFull();
+            }
+
+            if (guard != null) {
+                reportOverflows(stamp(timestamp), encoder);
             }
+            send();
         } catch (IOException e) {
+            if (instruments != null) {
+                instruments.failed();
+            }
             LOGGER.warn("Unable to report to OpenTSDB", opentsdb, e);
         } finally {
-            try {
-                opentsdb.close();
-            } catch (IOException e) {
-                LOGGER.debug("Error disconnecting from OpenTSDB", opentsdb, e);
-            }
-        }
-    }
-
-    private void reportTimer(String name, Timer timer, long timestamp) throws IOException {
-        final Snapshot snapshot = timer.getSnapshot();
-
-        opentsdb.send(prefix(name, "max"), format(convertDuration(snapshot.getMax())), timestamp);
-        opentsdb.send(prefix(name, "mean"), format(convertDuration(snapshot.getMean())), timestamp);
-        opentsdb.send(prefix(name, "min"), format(convertDuration(snapshot.getMin())), timestamp);
-        opentsdb.send(prefix(name, "stddev"),
-                      format(convertDuration(snapshot.getStdDev())),
-                      timestamp);
-        opentsdb.send(prefix(name, "p50"),
-                      format(convertDuration(snapshot.getMedian())),
-                      timestamp);
-        opentsdb.send(prefix(name, "p75"),
-                      format(convertDuration(snapshot.get75thPercentile())),
-                      timestamp);
-        opentsdb.send(prefix(name, "p95"),
-                      format(convertDuration(snapshot.get95thPercentile())),
-                      timestamp);
-        opentsdb.send(prefix(name, "p98"),
-                      format(convertDuration(snapshot.get98thPercentile())),
-                      timestamp);
-        opentsdb.send(prefix(name, "p99"),
-                      format(convertDuration(snapshot.get99thPercentile())),
-                      timestamp);
-        opentsdb.send(prefix(name, "p999"),
-                      format(convertDuration(snapshot.get999thPercentile())),
-                      timestamp);
-
-        reportMetered(name, timer, timestamp);
-    }
-
-    private void reportMetered(String name, Metered meter, long timestamp) throws IOException {
-        opentsdb.send(prefix(name, "count"), format(meter.getCount()), timestamp);
-        opentsdb.send(prefix(name, "m1_rate"),
-                      format(convertRate(meter.getOneMinuteRate())),
-                      timestamp);
-        opentsdb.send(prefix(name, "m5_rate"),
-                      format(convertRate(meter.getFiveMinuteRate())),
-                      timestamp);
-        opentsdb.send(prefix(name, "m15_rate"),
-                      format(convertRate(meter.getFifteenMinuteRate())),
-                      timestamp);
-        opentsdb.send(prefix(name, "mean_rate"),
-                      format(convertRate(meter.getMeanRate())),
-                      timestamp);
-    }
-
-    private void reportHistogram(String name, Histogram histogram, long timestamp) throws IOException {
-        final Snapshot snapshot = histogram.getSnapshot();
-        opentsdb.send(prefix(name, "count"), format(histogram.getCount()), timestamp);
-        opentsdb.send(prefix(name, "max"), format(snapshot.getMax()), timestamp);
-        opentsdb.send(prefix(name, "mean"), format(snapshot.getMean()), timestamp);
-        opentsdb.send(prefix(name, "min"), format(snapshot.getMin()), timestamp);
-        opentsdb.send(prefix(name, "stddev"), format(snapshot.getStdDev()), timestamp);
-        opentsdb.send(prefix(name, "p50"), format(snapshot.getMedian()), timestamp);
-        opentsdb.send(prefix(name, "p75"), format(snapshot.get75thPercentile()), timestamp);
-        opentsdb.send(prefix(name, "p95"), format(snapshot.get95thPercentile()), timestamp);
-        opentsdb.send(prefix(name, "p98"), format(snapshot.get98thPercentile()), timestamp);
-        opentsdb.send(prefix(name, "p99"), format(snapshot.get99thPercentile()), timestamp);
-        opentsdb.send(prefix(name, "p999"), format(snapshot.get999thPercentile()), timestamp);
-    }
-
-    private void reportCounter(String name, Counter counter, long timestamp) throws IOException {
-        opentsdb.send(prefix(name, "count"), format(counter.getCount()), timestamp);
-    }
-
-    private void reportGauge(String name, Gauge gauge, long timestamp) throws IOException {
-        final String value = format(gauge.getValue());
-        if (value != null) {
-            opentsdb.send(prefix(name), value, timestamp);
-        }
-    }
-
-    private String format(Object o) {
-        if (o instanceof Float) {
-            return format(((Float) o).doubleValue());
-        } else if (o instanceof Double) {
-            return format(((Double) o).doubleValue());
-        } else if (o instanceof Byte) {
-            return format(((Byte) o).longValue());
-        } else if (o instanceof Short) {
-            return format(((Short) o).longValue());
-        } else if (o instanceof Integer) {
-            return format(((Integer) o).longValue());
-        } else if (o instanceof Long) {
-            return format(((Long) o).longValue());
-        }
-        return null;
-    }
-
-    private String prefix(String... components) {
-        return MetricRegistry.name(prefix, components);
-    }
-
-    private String format(long n) {
-        return Long.toString(n);
-    }
-
-    private String format(double v) {
-        return String.format(Locale.US, "%2.2f", v);
+            encoder.clear();
+            if (instruments != null) {
+                instruments.finished();
+            }
+        }
+    }
+
+    /**
+     * Reports the metrics the filter accepts by walking the plans, after applying the plans
+     * added and removed since the last report. The registry itself is never walked.
+     */
+    private synchronized void stream() {
+        final long timestamp = timestamp();
+        if (instruments != null) {
+            instruments.started();
+        }
+        if (pacing > 0) {
+            pace();
+        }
+
+        try {
+            if (sender == null) {
+                opentsdb.connect();
+            }
+
+            replan();
+
+            if (snapshotter != null && planned >= PARALLEL_THRESHOLD) {
+                reportInParallel(plans, planned, timestamp);
+                return;
+            }
+
+            final Plan[] plans = this.plans;
+            for (int i = 0; i < planned; i++) {
+                plans[i].report(stamp(timestamp), encoder);
+                sendIfFull();
+            }
+
+            if (guard != null) {
+                reportOverflows(stamp(timestamp), encoder);
+            }
+            send();
+        } catch (IOException e) {
+            if (instruments != null) {
+                instruments.failed();
+            }
+            LOGGER.warn("Unable to report to OpenTSDB", opentsdb, e);
+        } finally {
+            encoder.clear();
+            if (instruments != null) {
+                instruments.finished();
+            }
+        }
+    }
+
+    /**
+     * Applies the plans added and removed since the last report, one at a time: a new plan is
+     * appended, and a removed one replaced by the last plan, so no other plan is touched.
+     */
+    private void replan() {
+        Replan change;
+        while ((change = replans.poll()) != null) {
+            final Plan removed = plansByName.remove(change.name);
+            if (removed != null) {
+                final Plan last = plans[--planned];
+                plans[removed.index] = last;
+                last.index = removed.index;
+                plans[planned] = null;
+            }
+            if (change.plan != null) {
+                if (planned == plans.length) {
+                    plans = Arrays.copyOf(plans, Math.max(16, planned * 2));
+                }
+                change.plan.index = planned;
+                plans[planned++] = change.plan;
+                plansByName.put(change.name, change.plan);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of times a metric was left out of a report for being over the limit on
+     * new names, whether dropped or counted in its prefix's overflow series.
+     *
+     * @return the number of names rejected
+     * @see Builder#limitNewSeries(int, long, TimeUnit, CardinalityOverflow)
+     */
+    public long getNamesRejected() {
+        return guard == null ? 0 : guard.getRejections();
+    }
+
+    /**
+     * Returns the estimated number of distinct names, not reported before, which tried to join
+     * the given prefix in the current window of the limit on new names.
+     *
+     * @param prefix a prefix of registry names
+     * @return the estimated number of new names
+     * @see Builder#groupCardinalityBy(int)
+     */
+    public long estimateNewNames(String prefix) {
+        return guard == null ? 0 : guard.estimateNewNames(prefix);
+    }
+
+    /**
+     * Returns the number of batches waiting to be sent, when sending asynchronously.
+     *
+     * @return the number of queued batches
+     */
+    public int getQueueDepth() {
+        return sender == null ? 0 : sender.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of batches dropped because the send queue was full, when sending
+     * asynchronously.
+     *
+     * @return the number of batches dropped
+     */
+    public long getBatchesDropped() {
+        return sender == null ? 0 : sender.getBatchesDropped();
+    }
+
+    /**
+     * Starts reporting every given period, on the hub's threads when the reporter was built for a
+     * {@link ReportingHub}.
+     *
+     * @param period the amount of time between polls
+     * @param unit   the unit for {@code period}
+     */
+    @Override
+    public void start(long period, TimeUnit unit) {
+        this.period = unit.toNanos(period);
+        if (hub == null) {
+            super.start(period, unit);
+        } else {
+            hub.schedule(this, period, unit);
+        }
+    }
+
+    /**
+     * Stops the reporter, sends any queued batches and closes the connection to OpenTSDB. The
+     * client and send queue of a {@link ReportingHub} are left to the hub.
+     */
+    @Override
+    public void stop() {
+        try {
+            registry.removeListener(evictor);
+            super.stop();
+            if (instruments != null) {
+                instruments.remove();
+            }
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+            }
+            if (hub != null) {
+                hub.cancel(this);
+                return;
+            }
+            if (sender != null) {
+                // the sending thread closes the client once it is done with it
+                sender.close(SENDER_CLOSE_TIMEOUT);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            opentsdb.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error disconnecting from OpenTSDB", opentsdb, e);
+        }
+    }
+
+    /**
+     * Returns the current time in the units measurements are timestamped in.
+     */
+    private long timestamp() {
+        final long time = clock.getTime();
+        return resolution == 1 ? time / 1000 : time;
+    }
+
+    /**
+     * Returns the timestamp for the next metric: the time now when each metric is timestamped on
+     * its own, otherwise the report's.
+     */
+    private long stamp(long reportTimestamp) {
+        return timestampEachMetric ? timestamp() : reportTimestamp;
+    }
+
+    /**
+     * Sets the client's pacing so that as much as it sent over the previous period is spread over
+     * the paced fraction of the next one.
+     */
+    private void pace() {
+        final long packets = opentsdb.getPacketsSent();
+        final long bytes = opentsdb.getBytesSent();
+        if (packetsBefore >= 0 && period > 0) {
+            final double seconds = pacing * period / 1e9;
+            opentsdb.setPacing(rate(packets - packetsBefore, seconds), rate(bytes - bytesBefore, seconds));
+        }
+        packetsBefore = packets;
+        bytesBefore = bytes;
+    }
+
+    private static long rate(long amount, double seconds) {
+        // nothing sent last period gives no basis for a limit
+        return amount <= 0 ? 0 : Math.max(1, (long) Math.ceil(amount / seconds));
+    }
+
+    /**
+     * Splits the metrics into a run per thread, snapshots and encodes the runs in parallel, each
+     * into an encoder of its own, and then sends the runs in order.
+     */
+    private void reportInParallel(SortedMap<String, Gauge> gauges,
+                                  SortedMap<String, Counter> counters,
+                                  SortedMap<String, Histogram> histograms,
+                                  SortedMap<String, Meter> meters,
+                                  SortedMap<String, Timer> timers,
+                                  int size,
+                                  long timestamp) throws IOException {
+        final Plan[] plans = new Plan[size];
+        int offset = flatten(gauges, plans, 0);
+        offset = flatten(counters, plans, offset);
+        offset = flatten(histograms, plans, offset);
+        offset = flatten(meters, plans, offset);
+        flatten(timers, plans, offset);
+        reportInParallel(plans, size, timestamp);
+    }
+
+    private void reportInParallel(Plan[] plans, int size, long timestamp) throws IOException {
+        final int length = (size + runs.length - 1) / runs.length;
+        final List<LineEncoder> outs = new ArrayList<LineEncoder>(runs.length);
+        final List<Future<LineEncoder>> futures = new ArrayList<Future<LineEncoder>>(runs.length);
+        IOException failure = null;
+        try {
+            for (int i = 0; i < runs.length && i * length < size; i++) {
+                outs.add(sender == null ? runs[i] : sender.acquire(decimals));
+                futures.add(snapshotter.submit(new Run(plans, i * length, Math.min(size, (i + 1) * length),
+                                                       timestamp, outs.get(i))));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Interrupted while snapshotting metrics");
+                    continue;
+                } catch (ExecutionException e) {
+                    failure = new IOException("Unable to snapshot metrics", e.getCause());
+                    continue;
+                }
+                if (failure == null) {
+                    try {
+                        dispatch(outs.get(i));
+                        // a dispatched run is sent, or the sender's to send
+                        outs.set(i, null);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < outs.size(); i++) {
+                // a run still going after an interrupt keeps its encoder
+                if (outs.get(i) != null && (i >= futures.size() || futures.get(i).isDone())) {
+                    release(outs.get(i));
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (guard != null) {
+            // the runs are done, so every name left out has been counted
+            reportOverflows(timestamp, encoder);
+        }
+        if (encoder.size() > 0) {
+            send();
+        } else if (sender == null) {
+            flush();
+        }
+    }
+
+    /**
+     * Clears an encoder whose lines are not going to be sent, handing it back to the sender if
+     * it came from there.
+     */
+    private void release(LineEncoder out) {
+        if (sender == null) {
+            out.clear();
+        } else {
+            sender.release(out);
+        }
+    }
+
+    private int flatten(SortedMap<String, ? extends Metric> map, Plan[] plans, int offset) {
+        for (Map.Entry<String, ? extends Metric> entry : map.entrySet()) {
+            plans[offset++] = new Plan(entry.getKey(), entry.getValue());
+        }
+        return offset;
+    }
+
+    private void reportTimer(String name, Timer timer, long timestamp, LineEncoder out) {
+        reportTimer(series(name, TIMER_ATTRIBUTES, timerAttributes, out), timer, timestamp, out);
+    }
+
+    private void reportTimer(Series series, Timer timer, long timestamp, LineEncoder out) {
+        if (series == null) {
+            return;
+        }
+        if (series.reportsAny(SNAPSHOT_ATTRIBUTES)) {
+            final Snapshot snapshot = timer.getSnapshot();
+
+            send(out, series, MetricAttribute.MAX, convertDuration(snapshot.getMax()), timestamp);
+            send(out, series, MetricAttribute.MEAN, convertDuration(snapshot.getMean()), timestamp);
+            send(out, series, MetricAttribute.MIN, convertDuration(snapshot.getMin()), timestamp);
+            send(out, series, MetricAttribute.STDDEV, convertDuration(snapshot.getStdDev()), timestamp);
+            send(out, series, MetricAttribute.P50, convertDuration(snapshot.getMedian()), timestamp);
+            send(out, series, MetricAttribute.P75, convertDuration(snapshot.get75thPercentile()), timestamp);
+            send(out, series, MetricAttribute.P95, convertDuration(snapshot.get95thPercentile()), timestamp);
+            send(out, series, MetricAttribute.P98, convertDuration(snapshot.get98thPercentile()), timestamp);
+            send(out, series, MetricAttribute.P99, convertDuration(snapshot.get99thPercentile()), timestamp);
+            send(out, series, MetricAttribute.P999, convertDuration(snapshot.get999thPercentile()), timestamp);
+        }
+
+        reportMetered(series, timer, timestamp, out);
+    }
+
+    private void reportMetered(String name, Metered meter, long timestamp, LineEncoder out) {
+        reportMetered(series(name, METER_ATTRIBUTES, meterAttributes, out), meter, timestamp, out);
+    }
+
+    private void reportMetered(Series series, Metered meter, long timestamp, LineEncoder out) {
+        if (series == null) {
+            return;
+        }
+        send(out, series, MetricAttribute.COUNT, meter.getCount(), timestamp);
+        send(out, series, MetricAttribute.M1_RATE, convertRate(meter.getOneMinuteRate()), timestamp);
+        send(out, series, MetricAttribute.M5_RATE, convertRate(meter.getFiveMinuteRate()), timestamp);
+        send(out, series, MetricAttribute.M15_RATE, convertRate(meter.getFifteenMinuteRate()), timestamp);
+        send(out, series, MetricAttribute.MEAN_RATE, convertRate(meter.getMeanRate()), timestamp);
+    }
+
+    private void reportHistogram(String name, Histogram histogram, long timestamp, LineEncoder out) {
+        reportHistogram(series(name, HISTOGRAM_ATTRIBUTES, histogramAttributes, out), histogram,
+                        timestamp, out);
+    }
+
+    private void reportHistogram(Series series, Histogram histogram, long timestamp, LineEncoder out) {
+        if (series == null) {
+            return;
+        }
+        send(out, series, MetricAttribute.COUNT, histogram.getCount(), timestamp);
+        if (series.reportsAny(SNAPSHOT_ATTRIBUTES)) {
+            final Snapshot snapshot = histogram.getSnapshot();
+            send(out, series, MetricAttribute.MAX, snapshot.getMax(), timestamp);
+            send(out, series, MetricAttribute.MEAN, snapshot.getMean(), timestamp);
+            send(out, series, MetricAttribute.MIN, snapshot.getMin(), timestamp);
+            send(out, series, MetricAttribute.STDDEV, snapshot.getStdDev(), timestamp);
+            send(out, series, MetricAttribute.P50, snapshot.getMedian(), timestamp);
+            send(out, series, MetricAttribute.P75, snapshot.get75thPercentile(), timestamp);
+            send(out, series, MetricAttribute.P95, snapshot.get95thPercentile(), timestamp);
+            send(out, series, MetricAttribute.P98, snapshot.get98thPercentile(), timestamp);
+            send(out, series, MetricAttribute.P99, snapshot.get99thPercentile(), timestamp);
+            send(out, series, MetricAttribute.P999, snapshot.get999thPercentile(), timestamp);
+        }
+    }
+
+    private void reportCounter(String name, Counter counter, long timestamp, LineEncoder out) {
+        reportCounter(series(name, COUNTER_ATTRIBUTES, COUNTER_ATTRIBUTES, out), counter, timestamp, out);
+    }
+
+    private void reportCounter(Series series, Counter counter, long timestamp, LineEncoder out) {
+        if (series != null && series.reportsAny(COUNTER_ATTRIBUTES)) {
+            final long count = counter.getCount();
+            if (!counterDeltas) {
+                send(out, series, MetricAttribute.COUNT, count, timestamp);
+            } else if (series.counted) {
+                send(out, series, MetricAttribute.COUNT, series.delta(count), timestamp);
+            } else if (series.cached) {
+                // the first count is only a baseline; a series the cache has no room for has none
+                series.delta(count);
+            }
+        }
+    }
+
+    private void reportGauge(String name, Gauge gauge, long timestamp, LineEncoder out) {
+        final Object o = gauge.getValue();
+        if (isNumber(o)) {
+            reportGauge(series(name, 0, 0, out), (Number) o, timestamp, out);
+        }
+    }
+
+    private void reportGauge(Series series, Number value, long timestamp, LineEncoder out) {
+        if (series == null) {
+            return;
+        }
+        if (value instanceof Float || value instanceof Double) {
+            send(out, series, null, value.doubleValue(), timestamp);
+        } else {
+            send(out, series, null, value.longValue(), timestamp);
+        }
+    }
+
+    /**
+     * Returns whether a gauge's value is a number OpenTSDB can store.
+     */
+    private static boolean isNumber(Object o) {
+        return o instanceof Float || o instanceof Double || o instanceof Byte || o instanceof Short ||
+                o instanceof Integer || o instanceof Long;
+    }
+
+    /**
+     * Encodes a value of the given attribute of a series, or its value if a gauge's attribute is
+     * {@code null}, unless the attribute is not reported or the value is suppressed.
+     */
+    private void send(LineEncoder out, Series series, MetricAttribute attribute, long value, long timestamp) {
+        final int slot = attribute == null ? VALUE : attribute.ordinal();
+        if (!series.reports(slot)) {
+            return;
+        }
+        if (series.interval > 0) {
+            if (!series.sample(slot, value, timestamp)) {
+                return;
+            }
+            if (series.aggregation == Aggregation.AVG) {
+                encode(out, series, slot, attribute, series.aggregate, series.window);
+            } else {
+                encode(out, series, slot, attribute, (long) series.aggregate, series.window);
+            }
+        } else {
+            encode(out, series, slot, attribute, value, timestamp);
+        }
+    }
+
+    private void send(LineEncoder out, Series series, MetricAttribute attribute, double value, long timestamp) {
+        final int slot = attribute == null ? VALUE : attribute.ordinal();
+        if (!series.reports(slot)) {
+            return;
+        }
+        if (series.interval > 0) {
+            if (series.sample(slot, value, timestamp)) {
+                encode(out, series, slot, attribute, series.aggregate, series.window);
+            }
+        } else {
+            encode(out, series, slot, attribute, value, timestamp);
+        }
+    }
+
+    private void encode(LineEncoder out,
+                        Series series,
+                        int slot,
+                        MetricAttribute attribute,
+                        long value,
+                        long timestamp) {
+        if (heartbeat == 0 || series.changed(slot, value, timestamp)) {
+            out.line(series.name(slot, attribute, out), timestamp, value, series.tags);
+        }
+    }
+
+    private void encode(LineEncoder out,
+                        Series series,
+                        int slot,
+                        MetricAttribute attribute,
+                        double value,
+                        long timestamp) {
+        if (heartbeat == 0 || series.changed(slot, Double.doubleToLongBits(value), timestamp)) {
+            out.line(series.name(slot, attribute, out), timestamp, value, series.tags);
+        }
+    }
+
+    /**
+     * Takes the guard's counts of the names left out of the report and, when collapsing them,
+     * encodes one point per prefix with the number left out under it.
+     */
+    private void reportOverflows(long timestamp, LineEncoder out) {
+        final Map<String, Integer> overflows = guard.takeOverflows();
+        if (cardinalityOverflow != CardinalityOverflow.COLLAPSE || overflows.isEmpty()) {
+            return;
+        }
+        final byte[] encodedTags = out.tags(OpenTSDB.encodeTags(tags));
+        for (Map.Entry<String, Integer> entry : overflows.entrySet()) {
+            // the prefixes beyond the most the guard keeps share a series with no prefix
+            final String group = entry.getKey();
+            final String metric = group.length() == 0 ? OVERFLOW_SERIES
+                                                      : group + '.' + OVERFLOW_SERIES;
+            out.line(out.name(prefix, metric, null), timestamp, entry.getValue().longValue(),
+                     encodedTags);
+        }
+    }
+
+    private void sendIfFull() throws IOException {
+        if (encoder.size() >= LineEncoder.DEFAULT_CAPACITY) {
+            dispatch(encoder);
+            if (sender != null) {
+                encoder = sender.acquire(decimals);
+            }
+        }
+    }
+
+    private void send() throws IOException {
+        dispatch(encoder);
+        if (sender == null) {
+            flush();
+        } else {
+            encoder = sender.acquire(decimals);
+        }
+    }
+
+    /**
+     * Sends a batch of lines, or queues it to be sent when sending asynchronously.
+     */
+    private void dispatch(LineEncoder out) throws IOException {
+        final long start = instruments == null ? 0 : instruments.sending(out);
+        try {
+            if (sender == null) {
+                opentsdb.send(out);
+            } else {
+                sender.submit(out);
+            }
+        } finally {
+            if (instruments != null) {
+                instruments.sent(start);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        final long start = instruments == null ? 0 : clock.getTick();
+        try {
+            opentsdb.flush();
+        } finally {
+            if (instruments != null) {
+                instruments.sent(start);
+            }
+        }
+    }
+
+    /**
+     * Returns the encoded names and tags a registry name is reported as, and the attributes
+     * reported for it, working them out the first time the name is seen. Once the cache is full,
+     * further names are worked out afresh on each report rather than displacing names which are
+     * reported just as often. Returns {@code null} for a name the cardinality guard leaves out.
+     */
+    private Series series(String name, int supported, int selected, LineEncoder out) {
+        Series s = series.get(name);
+        if (s == null) {
+            if (guard != null && !guard.admit(name)) {
+                // counted by the guard, for reportOverflows
+                return null;
+            }
+            final TaggedName tagged = tagExtractor.extract(name);
+            final Map<String, String> merged = new LinkedHashMap<String, String>(tags);
+            merged.putAll(tagged.getTags());
+            int attributes = selected;
+            for (int i = 0; i < overridePatterns.length; i++) {
+                if (overridePatterns[i].matcher(name).matches()) {
+                    attributes = overrideAttributes[i] & supported;
+                    break;
+                }
+            }
+            final boolean cached = series.size() < nameCacheSize;
+            Downsampling downsample = null;
+            if (cached) {
+                for (Downsampling d : downsampling) {
+                    if (d.names.matcher(name).matches()) {
+                        downsample = d.interval > 0 ? d : null;
+                        break;
+                    }
+                }
+            }
+            s = new Series(tagged.getMetric(), out.tags(OpenTSDB.encodeTags(merged)), attributes,
+                           downsample, cached);
+            if (cached) {
+                series.put(name, s);
+            } else if (!nameCacheFull && (heartbeat > 0 || counterDeltas || downsampling.length > 0)) {
+                nameCacheFull = true;
+                LOGGER.warn("More than {} metrics to report, so unchanged values, counter deltas " +
+                                    "and downsampling cannot be tracked for all of them", nameCacheSize);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * The metric name and encoded tags a registry name is reported as, and the attributes reported
+     * for it, with the encoded name of each attribute and, when needed, the values last sent for
+     * them and the running aggregates of downsampled values. A gauge's value takes the slot after
+     * the last attribute.
+     * <p>
+     * A series is only reported by one thread at a time, and the reports which touch it are
+     * ordered by {@link #report}'s lock and the snapshot pool, so the values need no locking.
+     */
+    private class Series {
+        private final String metric;
+        private final byte[] tags;
+        private final int attributes; // a bit for each reported attribute, and the gauge value
+        private final AtomicReferenceArray<byte[]> names;
+        private final long[] values; // the bits of the value last sent in each slot
+        private final long[] sentAt; // when each slot was last sent, or -1 if never
+        private final boolean cached; // whether the series is kept from report to report
+        private long lastCount = 0;
+        private boolean counted = false; // whether lastCount holds a count
+
+        private final long interval; // the downsampling interval, or 0 for full resolution
+        private final Aggregation aggregation;
+        private final long[] windows; // the start of the interval being aggregated in each slot
+        private final int[] counts;
+        private final double[] mins;
+        private final double[] maxes;
+        private final double[] sums;
+        private double aggregate; // the aggregate of the interval last closed by sample()
+        private long window; // the start of the interval last closed by sample()
+
+        private Series(String metric, byte[] tags, int attributes, Downsampling downsampling,
+                       boolean cached) {
+            this.metric = metric;
+            this.cached = cached;
+            this.tags = tags;
+            this.attributes = attributes | (1 << VALUE);
+            this.names = new AtomicReferenceArray<byte[]>(VALUE + 1);
+            if (heartbeat > 0) {
+                this.values = new long[VALUE + 1];
+                this.sentAt = new long[VALUE + 1];
+                Arrays.fill(sentAt, -1);
+            } else {
+                this.values = null;
+                this.sentAt = null;
+            }
+            if (downsampling != null) {
+                this.interval = downsampling.interval * resolution;
+                this.aggregation = downsampling.aggregation;
+                this.windows = new long[VALUE + 1];
+                this.counts = new int[VALUE + 1];
+                this.mins = new double[VALUE + 1];
+                this.maxes = new double[VALUE + 1];
+                this.sums = new double[VALUE + 1];
+            } else {
+                this.interval = 0;
+                this.aggregation = null;
+                this.windows = null;
+                this.counts = null;
+                this.mins = null;
+                this.maxes = null;
+                this.sums = null;
+            }
+        }
+
+        /**
+         * Adds a value to the interval being aggregated in the slot. Returns {@code true} if the
+         * value belongs to a later interval, in which case the earlier interval is closed and its
+         * start and aggregate left in {@link #window} and {@link #aggregate}.
+         */
+        private boolean sample(int i, double value, long timestamp) {
+            final long start = timestamp - timestamp % interval;
+            boolean closed = false;
+            if (counts[i] > 0 && start != windows[i]) {
+                switch (aggregation) {
+                    case MIN:
+                        aggregate = mins[i];
+                        break;
+                    case MAX:
+                        aggregate = maxes[i];
+                        break;
+                    case SUM:
+                        aggregate = sums[i];
+                        break;
+                    default:
+                        aggregate = sums[i] / counts[i];
+                }
+                window = windows[i];
+                counts[i] = 0;
+                closed = true;
+            }
+            if (counts[i] == 0) {
+                windows[i] = start;
+                mins[i] = value;
+                maxes[i] = value;
+                sums[i] = value;
+            } else {
+                mins[i] = Math.min(mins[i], value);
+                maxes[i] = Math.max(maxes[i], value);
+                sums[i] += value;
+            }
+            counts[i]++;
+            return closed;
+        }
+
+        private boolean reports(int slot) {
+            return (attributes & (1 << slot)) != 0;
+        }
+
+        private boolean reportsAny(int mask) {
+            return (attributes & mask) != 0;
+        }
+
+        /**
+         * Returns whether a value should be sent in the slot, i.e. it differs from the value last
+         * sent or the heartbeat has passed, and if so records it as sent.
+         */
+        private boolean changed(int i, long bits, long timestamp) {
+            if (sentAt[i] >= 0 && values[i] == bits && timestamp - sentAt[i] < heartbeat) {
+                return false;
+            }
+            values[i] = bits;
+            sentAt[i] = timestamp;
+            return true;
+        }
+
+        /**
+         * Returns the change in a cumulative count since the last call.
+         */
+        private long delta(long count) {
+            final long delta = count - lastCount;
+            lastCount = count;
+            counted = true;
+            return delta;
+        }
+
+        private byte[] name(int slot, MetricAttribute attribute, LineEncoder out) {
+            byte[] name = names.get(slot);
+            if (name == null) {
+                name = out.name(prefix, metric, attribute == null ? null : attribute.getSuffix());
+                names.set(slot, name);
+            }
+            return name;
+        }
+    }
+
+    /**
+     * The interval and aggregation metrics matching a pattern are downsampled with, or an interval
+     * of 0 to send them at full resolution.
+     */
+    private static class Downsampling {
+        private final Pattern names;
+        private final long interval;
+        private final Aggregation aggregation;
+
+        private Downsampling(Pattern names, long interval, Aggregation aggregation) {
+            this.names = names;
+            this.interval = interval;
+            this.aggregation = aggregation;
+        }
+    }
+
+    private static int mask(Set<MetricAttribute> attributes) {
+        int mask = 0;
+        for (MetricAttribute attribute : attributes) {
+            mask |= 1 << attribute.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * How a metric is reported: its kind, worked out once rather than on every report, and the
+     * series it is reported as, once looked up in the name cache.
+     * <p>
+     * A plan is only reported by one thread at a time, like its series.
+     */
+    private class Plan {
+        private final String name;
+        private final Metric metric;
+        private final int kind;
+        private Series series; // null until found in the name cache
+        private int index; // the plan's place among the plans
+
+        private Plan(String name, Metric metric) {
+            this.name = name;
+            this.metric = metric;
+            if (metric instanceof Gauge) {
+                this.kind = GAUGE;
+            } else if (metric instanceof Counter) {
+                this.kind = COUNTER;
+            } else if (metric instanceof Histogram) {
+                this.kind = HISTOGRAM;
+            } else if (metric instanceof Meter) {
+                this.kind = METER;
+            } else if (metric instanceof Timer) {
+                this.kind = TIMER;
+            } else {
+                this.kind = OTHER;
+            }
+        }
+
+        private void report(long timestamp, LineEncoder out) {
+            switch (kind) {
+                case GAUGE:
+                    final Object o = ((Gauge) metric).getValue();
+                    if (isNumber(o)) {
+                        reportGauge(series(0, 0, out), (Number) o, timestamp, out);
+                    }
+                    break;
+                case COUNTER:
+                    reportCounter(series(COUNTER_ATTRIBUTES, COUNTER_ATTRIBUTES, out), (Counter) metric,
+                                  timestamp, out);
+                    break;
+                case HISTOGRAM:
+                    reportHistogram(series(HISTOGRAM_ATTRIBUTES, histogramAttributes, out),
+                                    (Histogram) metric, timestamp, out);
+                    break;
+                case METER:
+                    reportMetered(series(METER_ATTRIBUTES, meterAttributes, out), (Meter) metric,
+                                  timestamp, out);
+                    break;
+                case TIMER:
+                    reportTimer(series(TIMER_ATTRIBUTES, timerAttributes, out), (Timer) metric,
+                                timestamp, out);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Returns the series of the metric, keeping it only if the name cache does, so a series
+         * the cache is too full for, or one the guard left out, is worked out afresh each time.
+         */
+        private Series series(int supported, int selected, LineEncoder out) {
+            Series s = series;
+            if (s == null) {
+                s = OpenTSDBReporter.this.series(name, supported, selected, out);
+                if (s != null && OpenTSDBReporter.this.series.get(name) == s) {
+                    series = s;
+                }
+            }
+            return s;
+        }
+    }
+
+    /**
+     * A metric added to or removed from the registry, handed from the registering thread to the
+     * next streamed report: the plan of the metric added, or {@code null} for one removed.
+     */
+    private static class Replan {
+        private final String name;
+        private final Plan plan;
+
+        private Replan(String name, Plan plan) {
+            this.name = name;
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Snapshots and encodes a run of the metrics of a report.
+     */
+    private class Run implements Callable<LineEncoder> {
+        private final Plan[] plans;
+        private final int from;
+        private final int to;
+        private final long timestamp;
+        private final LineEncoder out;
+
+        private Run(Plan[] plans, int from, int to, long timestamp, LineEncoder out) {
+            this.plans = plans;
+            this.from = from;
+            this.to = to;
+            this.timestamp = timestamp;
+            this.out = out;
+        }
+
+        @Override
+        public LineEncoder call() {
+            for (int i = from; i < to; i++) {
+                plans[i].report(stamp(timestamp), out);
+            }
+            return out;
+        }
+    }
+
+    private static class SnapshotThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "opentsdb-snapshot-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Evicts the cached names of metrics removed from the registry.
+     */
+    private class Evictor extends MetricRegistryListener.Base {
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            added(name, gauge);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            added(name, counter);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            added(name, histogram);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            added(name, meter);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            added(name, timer);
+        }
+
+        private void added(String name, Metric metric) {
+            if (replans != null && filter.matches(name, metric)) {
+                replans.offer(new Replan(name, new Plan(name, metric)));
+            }
+        }
+
+        private void removed(String name) {
+            if (replans != null) {
+                replans.offer(new Replan(name, null));
+            }
+            series.remove(name);
+            if (guard != null) {
+                guard.remove(name);
+            }
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            removed(name);
+        }
     }
 }
@@ -0,0 +1,18 @@
+package com.stuartwarren.metrics.opentsdb;
+
+/**
+ * What a reporter sending asynchronously does with a batch of lines when its send queue is full,
+ * e.g. because OpenTSDB is slow or unreachable.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the batch which did not fit, keeping the older batches already queued.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Overwrite the oldest queued batch with the batch which did not fit, so the freshest values
+     * are sent once OpenTSDB catches up.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,47 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link TagExtractor} which matches registry names against a regular expression. The first
+ * group is the metric name and each further group the value of a tag. Names which do not match
+ * are reported as they are.
+ * <p>
+ * For example, {@code new RegexTagExtractor(Pattern.compile("(api\\.requests)\\.([^.]+)\\.([^.]+)"), "method", "status")}
+ * reports {@code api.requests.GET.200} as {@code api.requests} with the tags
+ * {@code method=GET status=200}.
+ */
+public class RegexTagExtractor implements TagExtractor {
+    private final Pattern pattern;
+    private final String[] tagNames;
+
+    /**
+     * Creates a new extractor.
+     *
+     * @param pattern  the pattern to match names against; group 1 is the metric name
+     * @param tagNames the names of the tags captured by groups 2 onwards
+     */
+    public RegexTagExtractor(Pattern pattern, String... tagNames) {
+        this.pattern = pattern;
+        this.tagNames = tagNames.clone();
+    }
+
+    @Override
+    public TaggedName extract(String name) {
+        final Matcher matcher = pattern.matcher(name);
+        if (!matcher.matches()) {
+            return new TaggedName(name);
+        }
+        final Map<String, String> tags = new LinkedHashMap<String, String>();
+        for (int i = 0; i < tagNames.length && i + 2 <= matcher.groupCount(); i++) {
+            final String value = matcher.group(i + 2);
+            if (value != null) {
+                tags.put(tagNames[i], value);
+            }
+        }
+        return new TaggedName(matcher.group(1), tags);
+    }
+}
@@ -0,0 +1,248 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics an {@link OpenTSDBReporter} keeps about its own reports, registered under a common
+ * name in a registry of their own choosing:
+ * <ul>
+ *     <li>{@code report}, {@code snapshot} and {@code send}: timers of whole reports, and of the
+ *     time each report spent taking and encoding measurements and handing them over to be
+ *     sent</li>
+ *     <li>{@code points}, {@code bytes-encoded}, {@code bytes-sent} and {@code packets-sent}:
+ *     histograms of what each report produced and what the client sent while it ran</li>
+ *     <li>{@code allocated-bytes}: a histogram of the bytes the reporting thread allocated in each
+ *     report, where the JVM measures them</li>
+ *     <li>{@code failures}: a meter of failed reports, and {@code send-failures}, a gauge of the
+ *     client's failed writes</li>
+ *     <li>{@code queue-depth}, {@code batches-dropped} and {@code points-dropped}: gauges of the
+ *     send queue, when sending asynchronously</li>
+ *     <li>{@code names-rejected}: a gauge of the metrics left out for being over the limit on new
+ *     names, when there is one</li>
+ *     <li>{@code pacing-delay}: a gauge of the milliseconds packets have waited to be paced</li>
+ *     <li>{@code spill-bytes}, {@code spill-evicted-bytes} and {@code spill-replayed-bytes}:
+ *     gauges of the client's spill file, or 0 without one</li>
+ * </ul>
+ * <p>
+ * NB: this class is not threadsafe; only the reporting thread may record a report.
+ */
+class ReporterMetrics {
+    private final MetricRegistry metrics;
+    private final String name;
+    private final Clock clock;
+    private final OpenTSDB opentsdb;
+    private final ThreadMXBean threads;
+
+    private final Timer report;
+    private final Timer snapshot;
+    private final Timer send;
+    private final Histogram points;
+    private final Histogram bytesEncoded;
+    private final Histogram bytesSent;
+    private final Histogram packetsSent;
+    private final Histogram allocatedBytes;
+    private final Meter failures;
+
+    private long started;
+    private long sending;
+    private long pointsEncoded;
+    private long bytesEncodedTotal;
+    private long bytesSentBefore;
+    private long packetsSentBefore;
+    private long allocatedBefore;
+
+    ReporterMetrics(MetricRegistry metrics,
+                    String name,
+                    Clock clock,
+                    final OpenTSDB opentsdb,
+                    final AsyncSender sender,
+                    final CardinalityGuard guard) {
+        this.metrics = metrics;
+        this.name = name;
+        this.clock = clock;
+        this.opentsdb = opentsdb;
+        this.threads = allocationMeasuringThreads();
+
+        this.report = metrics.timer(MetricRegistry.name(name, "report"));
+        this.snapshot = metrics.timer(MetricRegistry.name(name, "snapshot"));
+        this.send = metrics.timer(MetricRegistry.name(name, "send"));
+        this.points = metrics.histogram(MetricRegistry.name(name, "points"));
+        this.bytesEncoded = metrics.histogram(MetricRegistry.name(name, "bytes-encoded"));
+        this.bytesSent = metrics.histogram(MetricRegistry.name(name, "bytes-sent"));
+        this.packetsSent = metrics.histogram(MetricRegistry.name(name, "packets-sent"));
+        this.allocatedBytes = threads == null ? null :
+                metrics.histogram(MetricRegistry.name(name, "allocated-bytes"));
+        this.failures = metrics.meter(MetricRegistry.name(name, "failures"));
+
+        metrics.register(MetricRegistry.name(name, "send-failures"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return opentsdb.getTotalFailures();
+            }
+        });
+        if (sender != null) {
+            metrics.register(MetricRegistry.name(name, "queue-depth"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return sender.getQueueDepth();
+                }
+            });
+            metrics.register(MetricRegistry.name(name, "batches-dropped"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return sender.getBatchesDropped();
+                }
+            });
+            metrics.register(MetricRegistry.name(name, "points-dropped"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return sender.getLinesDropped();
+                }
+            });
+        }
+        if (guard != null) {
+            metrics.register(MetricRegistry.name(name, "names-rejected"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return guard.getRejections();
+                }
+            });
+        }
+        metrics.register(MetricRegistry.name(name, "pacing-delay"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return TimeUnit.NANOSECONDS.toMillis(opentsdb.getPacingDelay());
+            }
+        });
+        metrics.register(MetricRegistry.name(name, "spill-bytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final SpillFile spill = opentsdb.getSpillFile();
+                return spill == null ? 0 : spill.getSize();
+            }
+        });
+        metrics.register(MetricRegistry.name(name, "spill-evicted-bytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final SpillFile spill = opentsdb.getSpillFile();
+                return spill == null ? 0 : spill.getBytesEvicted();
+            }
+        });
+        metrics.register(MetricRegistry.name(name, "spill-replayed-bytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final SpillFile spill = opentsdb.getSpillFile();
+                return spill == null ? 0 : spill.getBytesReplayed();
+            }
+        });
+    }
+
+    /**
+     * Returns a filter matching the metrics registered under the given name.
+     */
+    static MetricFilter matching(final String name) {
+        final String prefix = name + '.';
+        return new MetricFilter() {
+            @Override
+            public boolean matches(String metric, Metric value) {
+                return metric.startsWith(prefix);
+            }
+        };
+    }
+
+    /**
+     * Starts recording a report.
+     */
+    void started() {
+        this.started = clock.getTick();
+        this.sending = 0;
+        this.pointsEncoded = 0;
+        this.bytesEncodedTotal = 0;
+        this.bytesSentBefore = opentsdb.getBytesSent();
+        this.packetsSentBefore = opentsdb.getPacketsSent();
+        if (threads != null) {
+            this.allocatedBefore = allocated();
+        }
+    }
+
+    /**
+     * Records a batch of encoded lines about to be sent, and returns the tick sending began at.
+     */
+    long sending(LineEncoder batch) {
+        pointsEncoded += batch.lines();
+        bytesEncodedTotal += batch.size();
+        return clock.getTick();
+    }
+
+    /**
+     * Records the end of sending which began at the given tick.
+     */
+    void sent(long start) {
+        sending += clock.getTick() - start;
+    }
+
+    /**
+     * Records a report which failed.
+     */
+    void failed() {
+        failures.mark();
+    }
+
+    /**
+     * Finishes recording a report.
+     */
+    void finished() {
+        final long elapsed = clock.getTick() - started;
+        report.update(elapsed, TimeUnit.NANOSECONDS);
+        send.update(sending, TimeUnit.NANOSECONDS);
+        snapshot.update(elapsed - sending, TimeUnit.NANOSECONDS);
+        points.update(pointsEncoded);
+        bytesEncoded.update(bytesEncodedTotal);
+        bytesSent.update(opentsdb.getBytesSent() - bytesSentBefore);
+        packetsSent.update(opentsdb.getPacketsSent() - packetsSentBefore);
+        if (threads != null) {
+            allocatedBytes.update(allocated() - allocatedBefore);
+        }
+    }
+
+    /**
+     * Removes the metrics from their registry.
+     */
+    void remove() {
+        metrics.removeMatching(matching(name));
+    }
+
+    private long allocated() {
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the JVM's thread bean if it measures the bytes each thread allocates, or
+     * {@code null} if not.
+     */
+    private static ThreadMXBean allocationMeasuringThreads() {
+        try {
+            final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean &&
+                    ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported() &&
+                    ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        } catch (LinkageError e) {
+            // not a HotSpot JVM
+        }
+        return null;
+    }
+}
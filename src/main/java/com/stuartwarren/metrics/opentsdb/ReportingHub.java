@@ -0,0 +1,247 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the reports of several {@link OpenTSDBReporter}s, e.g. one per {@link
+ * com.codahale.metrics.MetricRegistry} of a large application, on one pool of threads and sends
+ * them through one {@link OpenTSDB} client and send queue, rather than each reporter holding a
+ * thread and a connection of its own.
+ * <p>
+ * Reporters built with {@link OpenTSDBReporter.Builder#build(ReportingHub)} are scheduled on the
+ * hub when started. Their cycles are staggered over the period, the n-th reporter starting the
+ * golden ratio's fractional part times n periods in, so however many there are they are spread
+ * evenly and do not all send on the same second; a random jitter can be added to every cycle as
+ * well. Batches from reporters which report at the same time, or which queue up behind a slow
+ * server, are sent back to back with a single flush, so their lines share datagrams.
+ */
+public class ReportingHub implements Closeable {
+    public static final int DEFAULT_THREADS = 1;
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReportingHub.class);
+    private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+    private static final long SENDER_CLOSE_TIMEOUT = 10000;
+
+    private final OpenTSDB opentsdb;
+    private final AsyncSender sender;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final List<Cycle> cycles;
+    private final Random random;
+
+    private volatile double jitter = 0;
+    private int scheduled = 0;
+
+    /**
+     * Creates a new hub which reports on {@link #DEFAULT_THREADS} threads and queues up to
+     * {@link #DEFAULT_QUEUE_SIZE} batches, dropping the oldest when the queue is full.
+     *
+     * @param opentsdb the client to send every reporter's metrics through
+     */
+    public ReportingHub(OpenTSDB opentsdb) {
+        this(opentsdb, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Creates a new hub.
+     *
+     * @param opentsdb       the client to send every reporter's metrics through
+     * @param threads        the number of threads to run reports on
+     * @param queueSize      the most batches waiting to be sent
+     * @param overflowPolicy which batch to drop when the queue is full
+     */
+    public ReportingHub(OpenTSDB opentsdb, int threads, int queueSize, OverflowPolicy overflowPolicy) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be positive");
+        }
+        this.opentsdb = opentsdb;
+        this.sender = new AsyncSender(opentsdb, DecimalFormatter.DEFAULT_DECIMALS, queueSize,
+                                      overflowPolicy);
+        this.scheduler = new ScheduledThreadPoolExecutor(threads, new HubThreadFactory());
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.cycles = new ArrayList<Cycle>();
+        this.random = new Random();
+    }
+
+    /**
+     * Delays each cycle by a random amount of up to the given fraction of its period, on top of
+     * its phase offset.
+     *
+     * @param jitter the largest delay, as a fraction of the period between 0 and 1
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("jitter must be at least 0 and less than 1");
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns the client every reporter's metrics are sent through.
+     *
+     * @return the {@link OpenTSDB} client
+     */
+    public OpenTSDB getClient() {
+        return opentsdb;
+    }
+
+    /**
+     * Returns the number of batches waiting to be sent.
+     *
+     * @return the number of queued batches
+     */
+    public int getQueueDepth() {
+        return sender.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of batches dropped because the send queue was full.
+     *
+     * @return the number of batches dropped
+     */
+    public long getBatchesDropped() {
+        return sender.getBatchesDropped();
+    }
+
+    /**
+     * Stops every reporter's cycle, sends the batches still queued and closes the client.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            for (Cycle cycle : cycles) {
+                cycle.cancel();
+            }
+            cycles.clear();
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            // the sending thread closes the client once it is done with it
+            sender.close(SENDER_CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    AsyncSender getSender() {
+        return sender;
+    }
+
+    /**
+     * Starts reporting the given reporter every given period, staggered after the reporters
+     * already scheduled.
+     */
+    synchronized void schedule(OpenTSDBReporter reporter, long period, TimeUnit unit) {
+        final long periodNanos = unit.toNanos(period);
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        final double phase = (scheduled++ * GOLDEN_RATIO_FRACTION) % 1.0;
+        final Cycle cycle = new Cycle(reporter, periodNanos,
+                                      System.nanoTime() + (long) (phase * periodNanos));
+        cycles.add(cycle);
+        cycle.scheduleNext();
+    }
+
+    /**
+     * Stops reporting the given reporter.
+     */
+    synchronized void cancel(OpenTSDBReporter reporter) {
+        for (int i = 0; i < cycles.size(); i++) {
+            if (cycles.get(i).reporter == reporter) {
+                cycles.remove(i).cancel();
+                return;
+            }
+        }
+    }
+
+    private long jitter(long period) {
+        return jitter == 0 ? 0 : (long) (random.nextDouble() * jitter * period);
+    }
+
+    /**
+     * Runs a reporter's reports, rescheduling itself for the next one.
+     */
+    private class Cycle implements Runnable {
+        private final OpenTSDBReporter reporter;
+        private final long period;
+        private long next; // when the cycle is due, before jitter
+        private volatile boolean cancelled = false;
+        private ScheduledFuture<?> future;
+
+        private Cycle(OpenTSDBReporter reporter, long period, long first) {
+            this.reporter = reporter;
+            this.period = period;
+            this.next = first;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                reporter.report();
+            } catch (RuntimeException e) {
+                LOGGER.error("RuntimeException thrown from {}#report. Exception was suppressed.",
+                             reporter.getClass().getSimpleName(), e);
+            }
+            // skip the cycles a slow report overran rather than running them back to back
+            final long now = System.nanoTime();
+            do {
+                next += period;
+            } while (next - now <= 0);
+            scheduleNext();
+        }
+
+        private synchronized void scheduleNext() {
+            if (cancelled) {
+                return;
+            }
+            final long delay = next - System.nanoTime() + jitter(period);
+            try {
+                future = scheduler.schedule(this, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // the hub is closing
+            }
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static class HubThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "opentsdb-hub-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Decides which of the endpoints of a {@link ShardedTransport} each measurement line is sent to.
+ * <p>
+ * NB: routings keep state, such as the position of a round robin, so each transport needs one of
+ * its own.
+ */
+public abstract class Routing {
+    /**
+     * Returns a routing which sends every line of a metric to the same endpoint, chosen by hashing
+     * the metric name onto a ring of the endpoints, so each TSD sees whole series and its write
+     * cache stays warm. When an endpoint is unhealthy its metrics move to the next endpoint on
+     * the ring, and only those metrics move. Endpoints are placed on the ring by their position,
+     * so they must be listed in the same order everywhere.
+     *
+     * @return a new consistent hashing routing
+     */
+    public static Routing consistentHash() {
+        return new ConsistentHash();
+    }
+
+    /**
+     * Returns a routing which spreads lines evenly over the healthy endpoints in turn.
+     *
+     * @return a new round robin routing
+     */
+    public static Routing roundRobin() {
+        return new RoundRobin();
+    }
+
+    /**
+     * Returns a routing which sends every line to the first healthy endpoint, so the rest stand by
+     * for when it fails.
+     *
+     * @return a new failover routing
+     */
+    public static Routing failover() {
+        return new Failover();
+    }
+
+    /**
+     * Returns the endpoint a line of the given metric is sent to.
+     *
+     * @param name    the buffer holding the metric name
+     * @param off     the offset of the metric name
+     * @param len     the length of the metric name
+     * @param healthy whether each endpoint is healthy
+     * @return the index of a healthy endpoint, or -1 if there is none
+     */
+    public abstract int route(byte[] name, int off, int len, boolean[] healthy);
+
+    private static class ConsistentHash extends Routing {
+        private static final int POINTS_PER_ENDPOINT = 160;
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private int[] points = new int[0]; // the hashes of the points on the ring, in order
+        private int[] owners = new int[0]; // the endpoint owning each point
+        private int endpoints = 0;
+
+        @Override
+        public int route(byte[] name, int off, int len, boolean[] healthy) {
+            if (healthy.length != endpoints) {
+                build(healthy.length);
+            }
+            int i = Arrays.binarySearch(points, hash(name, off, len));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (int n = 0; n < points.length; n++) {
+                final int owner = owners[(i + n) % points.length];
+                if (healthy[owner]) {
+                    return owner;
+                }
+            }
+            return -1;
+        }
+
+        private void build(int endpoints) {
+            final long[] ring = new long[endpoints * POINTS_PER_ENDPOINT];
+            for (int e = 0; e < endpoints; e++) {
+                for (int p = 0; p < POINTS_PER_ENDPOINT; p++) {
+                    final byte[] key = ("endpoint-" + e + "-" + p).getBytes(UTF_8);
+                    // sort by hash, keeping the owner in the low bits
+                    ring[e * POINTS_PER_ENDPOINT + p] = ((long) hash(key, 0, key.length) << 32) | e;
+                }
+            }
+            Arrays.sort(ring);
+            this.points = new int[ring.length];
+            this.owners = new int[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                points[i] = (int) (ring[i] >> 32);
+                owners[i] = (int) ring[i];
+            }
+            this.endpoints = endpoints;
+        }
+
+        /**
+         * FNV-1a, with a final mix so that similar names spread over the whole ring.
+         */
+        private static int hash(byte[] bytes, int off, int len) {
+            int h = 0x811c9dc5;
+            for (int i = off; i < off + len; i++) {
+                h ^= bytes[i];
+                h *= 0x01000193;
+            }
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    private static class RoundRobin extends Routing {
+        private int next = 0;
+
+        @Override
+        public int route(byte[] name, int off, int len, boolean[] healthy) {
+            for (int n = 0; n < healthy.length; n++) {
+                final int i = next % healthy.length;
+                next = (i + 1) % healthy.length;
+                if (healthy[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class Failover extends Routing {
+        @Override
+        public int route(byte[] name, int off, int len, boolean[] healthy) {
+            for (int i = 0; i < healthy.length; i++) {
+                if (healthy[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
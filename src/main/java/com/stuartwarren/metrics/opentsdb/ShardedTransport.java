@@ -0,0 +1,477 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport which shares measurements out over several endpoints, each a transport of its own,
+ * e.g. one {@link UDPOutputStream} per udp_bridge or one {@link TelnetOutputStream} per TSD.
+ * <p>
+ * Each line is routed to an endpoint by a {@link Routing} and buffered in a batch for that
+ * endpoint; the batches are written out when they fill up, and on {@link #flush()} all of them are
+ * sent and their endpoints flushed concurrently, one thread per endpoint. An endpoint which fails
+ * is closed, which discards whatever it still holds, and its lines are routed again over the
+ * remaining endpoints. It is tried again once the retry interval has passed. If no endpoint is
+ * left, the failure is thrown and the lines are held for {@link #spillUnsent(SpillFile)}, then
+ * dropped on the next write or flush.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+public class ShardedTransport extends Transport {
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    public static final long DEFAULT_RETRY_INTERVAL = 30000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedTransport.class);
+
+    private final Transport[] endpoints;
+    private final Routing routing;
+    private final Clock clock;
+    private final Batch[] batches;
+    private final boolean[] healthy;
+    private final boolean[] all;
+    private final long[] retryAt;
+    private final Batch partial; // the start of a line split across writes
+    private boolean stranded = false; // the batches hold lines no endpoint could take
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long retryInterval = DEFAULT_RETRY_INTERVAL;
+    private ExecutorService executor;
+
+    /**
+     * Creates a new transport over the given endpoints.
+     *
+     * @param endpoints the transports to share measurements out over
+     * @param routing   the routing which decides the endpoint of each line
+     */
+    public ShardedTransport(List<? extends Transport> endpoints, Routing routing) {
+        this(endpoints, routing, Clock.defaultClock());
+    }
+
+    /**
+     * Creates a new transport over the given endpoints, using the given clock to time retries of
+     * failed endpoints.
+     *
+     * @param endpoints the transports to share measurements out over
+     * @param routing   the routing which decides the endpoint of each line
+     * @param clock     the clock to time retries with
+     */
+    public ShardedTransport(List<? extends Transport> endpoints, Routing routing, Clock clock) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("at least one endpoint is required");
+        }
+        this.endpoints = endpoints.toArray(new Transport[endpoints.size()]);
+        this.routing = routing;
+        this.clock = clock;
+        this.batches = new Batch[this.endpoints.length];
+        this.healthy = new boolean[this.endpoints.length];
+        this.all = new boolean[this.endpoints.length];
+        this.retryAt = new long[this.endpoints.length];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = new Batch();
+            healthy[i] = true;
+            all[i] = true;
+        }
+        this.partial = new Batch();
+    }
+
+    /**
+     * Sets the size at which an endpoint's batch is written out before the end of a report.
+     *
+     * @param batchSize the batch size, in bytes
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets how long a failed endpoint is left out before it is tried again.
+     *
+     * @param retryInterval the retry interval, in milliseconds
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Returns whether the given endpoint is taking lines, i.e. it has not failed or is due to be
+     * tried again.
+     *
+     * @param endpoint the index of the endpoint
+     * @return {@code true} if the endpoint is healthy
+     */
+    public boolean isHealthy(int endpoint) {
+        return healthy[endpoint] || clock.getTime() >= retryAt[endpoint];
+    }
+
+    /**
+     * Connects every healthy endpoint.
+     *
+     * @throws IOException if no endpoint could be connected
+     */
+    @Override
+    public void connect() throws IOException {
+        retryDue();
+        IOException failure = null;
+        for (int i = 0; i < endpoints.length; i++) {
+            if (healthy[i]) {
+                try {
+                    endpoints[i].connect();
+                } catch (IOException e) {
+                    failed(i, e);
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null && healthyCount() == 0) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        for (Transport endpoint : endpoints) {
+            if (endpoint.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        retryDue();
+        dropStranded();
+        final int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                if (partial.size() > 0) {
+                    partial.write(b, start, i + 1 - start);
+                    route(partial.bytes(), 0, partial.size());
+                    partial.reset();
+                } else {
+                    route(b, start, i + 1 - start);
+                }
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            partial.write(b, start, end - start);
+        }
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i].size() >= batchSize) {
+                writeBatch(i);
+            }
+        }
+    }
+
+    /**
+     * Sends every endpoint's batch and flushes the endpoints, concurrently.
+     *
+     * @throws IOException if the lines could not be sent to any endpoint
+     */
+    @Override
+    public void flush() throws IOException {
+        retryDue();
+        dropStranded();
+        final List<Integer> flushing = new ArrayList<Integer>(endpoints.length);
+        for (int i = 0; i < endpoints.length; i++) {
+            if (healthy[i] || batches[i].size() > 0) {
+                flushing.add(i);
+            }
+        }
+        while (!flushing.isEmpty()) {
+            final List<Integer> failed = sendAll(flushing);
+            flushing.clear();
+            for (int i : failed) {
+                if (healthyCount() == 0) {
+                    stranded = true;
+                    throw new IOException("No OpenTSDB endpoint is reachable; holding " +
+                                                  pending() + " bytes");
+                }
+                // route the failed endpoint's lines over the others
+                final Batch lines = batches[i];
+                batches[i] = new Batch();
+                route(lines.bytes(), 0, lines.size());
+            }
+            for (int i = 0; i < endpoints.length; i++) {
+                if (batches[i].size() > 0) {
+                    flushing.add(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the lines held in the batches, and those the endpoints have not yet sent, into the
+     * spill file.
+     */
+    @Override
+    public void spillUnsent(SpillFile spill) {
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i].spillUnsent(spill);
+            if (spill != null && batches[i].size() > 0) {
+                spill.write(batches[i].bytes(), 0, batches[i].size());
+            }
+            batches[i].reset();
+        }
+        stranded = false;
+    }
+
+    /**
+     * Closes every endpoint and discards the lines not yet sent.
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        partial.reset();
+        stranded = false;
+        IOException failure = null;
+        for (int i = 0; i < endpoints.length; i++) {
+            batches[i].reset();
+            try {
+                endpoints[i].close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public long getPacketsSent() {
+        long packets = 0;
+        for (Transport endpoint : endpoints) {
+            packets += endpoint.getPacketsSent();
+        }
+        return packets;
+    }
+
+    @Override
+    public long getBytesSent() {
+        long bytes = 0;
+        for (Transport endpoint : endpoints) {
+            bytes += endpoint.getBytesSent();
+        }
+        return bytes;
+    }
+
+    /**
+     * Paces every endpoint at an equal share of the given rates.
+     */
+    @Override
+    public void setPacing(long packetsPerSecond, long bytesPerSecond) {
+        final int n = endpoints.length;
+        for (Transport endpoint : endpoints) {
+            endpoint.setPacing((packetsPerSecond + n - 1) / n, (bytesPerSecond + n - 1) / n);
+        }
+    }
+
+    @Override
+    public long getPacingDelay() {
+        long delay = 0;
+        for (Transport endpoint : endpoints) {
+            delay += endpoint.getPacingDelay();
+        }
+        return delay;
+    }
+
+    /**
+     * Adds whole lines to the batches of the endpoints they are routed to.
+     */
+    private void route(byte[] b, int off, int len) {
+        final int end = off + len;
+        int start = off;
+        while (start < end) {
+            int space = start;
+            while (space < end && b[space] != ' ' && b[space] != '\n') {
+                space++;
+            }
+            int newline = space;
+            while (newline < end && b[newline] != '\n') {
+                newline++;
+            }
+            int endpoint = routing.route(b, start, space - start, healthy);
+            if (endpoint < 0) {
+                // nowhere healthy; send where it would go and let the endpoint fail
+                endpoint = routing.route(b, start, space - start, all);
+            }
+            batches[endpoint].write(b, start, Math.min(newline + 1, end) - start);
+            start = newline + 1;
+        }
+    }
+
+    private void writeBatch(int i) throws IOException {
+        try {
+            endpoints[i].write(batches[i].bytes(), 0, batches[i].size());
+            batches[i].reset();
+        } catch (IOException e) {
+            failed(i, e);
+            if (healthyCount() == 0) {
+                stranded = true;
+                throw e;
+            }
+            final Batch lines = batches[i];
+            batches[i] = new Batch();
+            route(lines.bytes(), 0, lines.size());
+        }
+    }
+
+    /**
+     * Drops the lines held since no endpoint could take them, if they were not spilled.
+     */
+    private void dropStranded() {
+        if (stranded) {
+            LOGGER.warn("Dropped {} bytes no OpenTSDB endpoint could take", pending());
+            for (Batch batch : batches) {
+                batch.reset();
+            }
+            stranded = false;
+        }
+    }
+
+    private int pending() {
+        int size = 0;
+        for (Batch batch : batches) {
+            size += batch.size();
+        }
+        return size;
+    }
+
+    /**
+     * Sends the batches of the given endpoints and flushes them, concurrently if there are
+     * several, and returns the endpoints which failed.
+     */
+    private List<Integer> sendAll(List<Integer> flushing) throws IOException {
+        final List<Integer> failed = new ArrayList<Integer>();
+        if (flushing.size() == 1) {
+            final int i = flushing.get(0);
+            final IOException e = new Send(i).call();
+            if (e != null) {
+                failed(i, e);
+                failed.add(i);
+            }
+            return failed;
+        }
+
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(endpoints.length, new EndpointThreadFactory());
+        }
+        final List<Future<IOException>> futures = new ArrayList<Future<IOException>>(flushing.size());
+        for (int i : flushing) {
+            futures.add(executor.submit(new Send(i)));
+        }
+        for (int n = 0; n < futures.size(); n++) {
+            final int i = flushing.get(n);
+            IOException e;
+            try {
+                e = futures.get(n).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending to OpenTSDB");
+            } catch (ExecutionException ee) {
+                e = new IOException("Unable to send to OpenTSDB", ee.getCause());
+            }
+            if (e != null) {
+                failed(i, e);
+                failed.add(i);
+            }
+        }
+        return failed;
+    }
+
+    private void failed(int i, IOException e) {
+        LOGGER.warn("Unable to send to OpenTSDB endpoint {}", endpoints[i], e);
+        healthy[i] = false;
+        retryAt[i] = clock.getTime() + retryInterval;
+        try {
+            endpoints[i].close();
+        } catch (IOException ignored) {
+            // already failed
+        }
+    }
+
+    private void retryDue() {
+        final long now = clock.getTime();
+        for (int i = 0; i < healthy.length; i++) {
+            if (!healthy[i] && now >= retryAt[i]) {
+                healthy[i] = true;
+            }
+        }
+    }
+
+    private int healthyCount() {
+        int count = 0;
+        for (boolean h : healthy) {
+            if (h) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends an endpoint's batch and flushes the endpoint, returning the failure if there is one.
+     */
+    private class Send implements Callable<IOException> {
+        private final int endpoint;
+
+        private Send(int endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public IOException call() {
+            final Batch batch = batches[endpoint];
+            try {
+                endpoints[endpoint].connect();
+                endpoints[endpoint].write(batch.bytes(), 0, batch.size());
+                endpoints[endpoint].flush();
+            } catch (IOException e) {
+                return e;
+            }
+            batch.reset();
+            return null;
+        }
+    }
+
+    private static class Batch extends ByteArrayOutputStream {
+        private byte[] bytes() {
+            return buf;
+        }
+    }
+
+    private static class EndpointThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "opentsdb-endpoint-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed-size ring of measurement lines in a memory-mapped file, which holds the lines an
+ * {@link OpenTSDB} client failed to send until they can be replayed, with their original
+ * timestamps, once the server is reachable again.
+ * <p>
+ * The ring survives restarts of the JVM: the positions of its oldest and newest lines are kept in
+ * a header at the start of the file, and a file of the same capacity is picked up where it was
+ * left. When the ring is full the oldest lines are evicted to make room. Replay is limited to a
+ * number of bytes per second, so a backlog does not swamp a server which has just recovered; the
+ * rate must allow for the longest line.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+public class SpillFile implements Closeable {
+    public static final int DEFAULT_REPLAY_RATE = 64 * 1024;
+
+    private static final int MAGIC = 0x4f545350; // OTSP
+    private static final int HEADER_SIZE = 24;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+
+    private final File file;
+    private final int capacity;
+    private final Clock clock;
+    private final MappedByteBuffer map;
+
+    // head and tail only ever grow; a line at position p is stored at HEADER_SIZE + p % capacity
+    private volatile long head;
+    private volatile long tail;
+
+    private int replayRate = DEFAULT_REPLAY_RATE;
+    private double allowance;
+    private long lastRefill;
+
+    private volatile long bytesEvicted = 0;
+    private volatile long bytesReplayed = 0;
+
+    /**
+     * Opens the ring in the given file, creating it if needed.
+     *
+     * @param file     the file to keep the ring in
+     * @param capacity the most bytes of lines the ring holds
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public SpillFile(File file, int capacity) throws IOException {
+        this(file, capacity, Clock.defaultClock());
+    }
+
+    /**
+     * Opens the ring in the given file, creating it if needed.
+     *
+     * @param file     the file to keep the ring in
+     * @param capacity the most bytes of lines the ring holds
+     * @param clock    the clock replay is rate limited by
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public SpillFile(File file, int capacity, Clock clock) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.file = file;
+        this.capacity = capacity;
+        this.clock = clock;
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final boolean existing = raf.length() == HEADER_SIZE + capacity;
+            raf.setLength(HEADER_SIZE + capacity);
+            this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            if (existing && map.getInt(0) == MAGIC && map.getInt(CAPACITY_OFFSET) == capacity &&
+                    map.getLong(HEAD_OFFSET) <= map.getLong(TAIL_OFFSET) &&
+                    map.getLong(TAIL_OFFSET) - map.getLong(HEAD_OFFSET) <= capacity) {
+                this.head = map.getLong(HEAD_OFFSET);
+                this.tail = map.getLong(TAIL_OFFSET);
+            } else {
+                map.putInt(0, MAGIC);
+                map.putInt(CAPACITY_OFFSET, capacity);
+                this.head = 0;
+                this.tail = 0;
+                writeHeader();
+            }
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+
+        this.allowance = replayRate;
+        this.lastRefill = clock.getTime();
+    }
+
+    /**
+     * Sets the most bytes of lines replayed per second.
+     *
+     * @param replayRate the replay rate, in bytes per second
+     */
+    public void setReplayRate(int replayRate) {
+        if (replayRate < 1) {
+            throw new IllegalArgumentException("replayRate must be positive");
+        }
+        this.replayRate = replayRate;
+        this.allowance = Math.min(allowance, replayRate);
+    }
+
+    /**
+     * Adds whole lines to the ring, evicting the oldest lines to make room. If the lines are
+     * longer than the ring, only the newest lines which fit are kept.
+     *
+     * @param b   the buffer holding the lines
+     * @param off the offset of the first line
+     * @param len the length of the lines, ending with a newline
+     */
+    public void write(byte[] b, int off, int len) {
+        if (len > capacity) {
+            // skip to the first line which leaves the rest fitting
+            int skip = off + len - capacity;
+            while (skip < off + len && b[skip - 1] != '\n') {
+                skip++;
+            }
+            bytesEvicted += skip - off;
+            len -= skip - off;
+            off = skip;
+            if (len == 0) {
+                return;
+            }
+        }
+        if (tail + len - head > capacity) {
+            evict(tail + len - head - capacity);
+        }
+        int position = physical(tail);
+        final int first = Math.min(len, HEADER_SIZE + capacity - position);
+        put(position, b, off, first);
+        if (first < len) {
+            put(HEADER_SIZE, b, off + first, len - first);
+        }
+        tail += len;
+        writeHeader();
+    }
+
+    /**
+     * Copies as many of the oldest whole lines into the given buffer as it and the replay rate
+     * allow, without removing them from the ring.
+     *
+     * @param dst the buffer to copy lines into
+     * @return the number of bytes copied, which is 0 if there are no lines or none may be
+     *         replayed yet
+     * @see #commit(int)
+     */
+    public int read(byte[] dst) {
+        refill();
+        final int limit = (int) Math.min(Math.min(dst.length, tail - head), (long) allowance);
+        if (limit <= 0) {
+            return 0;
+        }
+        final int position = physical(head);
+        final int first = Math.min(limit, HEADER_SIZE + capacity - position);
+        get(position, dst, 0, first);
+        if (first < limit) {
+            get(HEADER_SIZE, dst, first, limit - first);
+        }
+        for (int i = limit; i > 0; i--) {
+            if (dst[i - 1] == '\n') {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Removes lines copied by {@link #read(byte[])} once they have been sent.
+     *
+     * @param length the number of bytes sent
+     */
+    public void commit(int length) {
+        head += Math.min(length, tail - head);
+        allowance -= length;
+        bytesReplayed += length;
+        writeHeader();
+    }
+
+    /**
+     * Returns whether the ring holds no lines.
+     *
+     * @return {@code true} if there are no lines to replay
+     */
+    public boolean isEmpty() {
+        return tail == head;
+    }
+
+    /**
+     * Returns the number of bytes of lines waiting to be replayed.
+     *
+     * @return the number of bytes held
+     */
+    public long getSize() {
+        return tail - head;
+    }
+
+    /**
+     * Returns the most bytes of lines the ring holds.
+     *
+     * @return the capacity of the ring
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bytes of lines evicted to make room for newer lines.
+     *
+     * @return the number of bytes evicted
+     */
+    public long getBytesEvicted() {
+        return bytesEvicted;
+    }
+
+    /**
+     * Returns the number of bytes of lines replayed.
+     *
+     * @return the number of bytes replayed
+     */
+    public long getBytesReplayed() {
+        return bytesReplayed;
+    }
+
+    /**
+     * Writes the ring out to the file.
+     */
+    @Override
+    public void close() {
+        map.force();
+    }
+
+    @Override
+    public String toString() {
+        return "SpillFile{" + file + ", " + getSize() + "/" + capacity + " bytes}";
+    }
+
+    /**
+     * Moves the head past at least the given number of bytes, to the start of the next line.
+     */
+    private void evict(long bytes) {
+        long newHead = head + bytes;
+        while (newHead < tail && map.get(physical(newHead - 1)) != '\n') {
+            newHead++;
+        }
+        bytesEvicted += newHead - head;
+        head = newHead;
+    }
+
+    private void refill() {
+        final long now = clock.getTime();
+        if (now > lastRefill) {
+            allowance = Math.min(replayRate, allowance + (now - lastRefill) * (replayRate / 1000.0));
+            lastRefill = now;
+        }
+    }
+
+    private int physical(long position) {
+        return HEADER_SIZE + (int) (position % capacity);
+    }
+
+    private void put(int position, byte[] b, int off, int len) {
+        final ByteBuffer slice = map.duplicate();
+        slice.position(position);
+        slice.put(b, off, len);
+    }
+
+    private void get(int position, byte[] b, int off, int len) {
+        final ByteBuffer slice = map.duplicate();
+        slice.position(position);
+        slice.get(b, off, len);
+    }
+
+    private void writeHeader() {
+        map.putLong(HEAD_OFFSET, head);
+        map.putLong(TAIL_OFFSET, tail);
+    }
+}
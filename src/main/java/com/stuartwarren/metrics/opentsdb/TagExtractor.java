@@ -0,0 +1,26 @@
+package com.stuartwarren.metrics.opentsdb;
+
+/**
+ * Splits a registry name into the OpenTSDB metric name and the tags it is reported with, so
+ * dimensions baked into a name become tags instead of separate metrics.
+ */
+public interface TagExtractor {
+    /**
+     * A {@link TagExtractor} which reports every name as it is, without tags.
+     */
+    TagExtractor NONE = new TagExtractor() {
+        @Override
+        public TaggedName extract(String name) {
+            return new TaggedName(name);
+        }
+    };
+
+    /**
+     * Returns the metric name and tags to report the given registry name as. Called once per
+     * registry name, not once per report.
+     *
+     * @param name the name of the metric in the registry
+     * @return the metric name and tags to report
+     */
+    TaggedName extract(String name);
+}
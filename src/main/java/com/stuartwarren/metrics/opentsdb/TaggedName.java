@@ -0,0 +1,63 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An OpenTSDB metric name and its tags.
+ */
+public class TaggedName {
+    private final String metric;
+    private final Map<String, String> tags;
+
+    /**
+     * Creates a new metric name without tags.
+     *
+     * @param metric the metric name
+     */
+    public TaggedName(String metric) {
+        this(metric, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Creates a new metric name with the given tags.
+     *
+     * @param metric the metric name
+     * @param tags   the tags, in the order they are sent
+     */
+    public TaggedName(String metric, Map<String, String> tags) {
+        this.metric = metric;
+        this.tags = Collections.unmodifiableMap(new LinkedHashMap<String, String>(tags));
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TaggedName)) {
+            return false;
+        }
+        final TaggedName that = (TaggedName) o;
+        return metric.equals(that.metric) && tags.equals(that.tags);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * metric.hashCode() + tags.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return metric + tags;
+    }
+}
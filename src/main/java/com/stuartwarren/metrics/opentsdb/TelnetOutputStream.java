@@ -0,0 +1,314 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * A {@link Transport} which writes {@code put} lines straight to a TSD over its telnet-style TCP
+ * interface, bypassing tcollector.
+ * <p>
+ * Lines are buffered until {@link #flush()}, so a whole report goes out in a single write. If the
+ * TSD is unreachable the lines are kept for the next attempt, reconnecting with exponential
+ * backoff, and the oldest lines are dropped once more than the maximum buffer size is held.
+ * <p>
+ * The TSD rejects points without at least one tag.
+ * <p>
+ * NB: this class is not threadsafe.
+ */
+public class TelnetOutputStream extends Transport {
+    public static final int DEFAULT_PORT = 4242;
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final long DEFAULT_MIN_BACKOFF = 1000;
+    public static final long DEFAULT_MAX_BACKOFF = 60000;
+
+    private static final byte[] PUT = { 'p', 'u', 't', ' ' };
+
+    private final InetSocketAddress address;
+    private final Clock clock;
+
+    private int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long minBackoff = DEFAULT_MIN_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    private int idx = 0; // points to the next empty buffer byte
+    private int lineEnd = 0; // points just past the last complete line in buffer
+    private boolean lineStart = true;
+
+    private long backoff = 0;
+    private long nextAttempt = 0;
+    private long linesDropped = 0;
+
+    /**
+     * Creates a new transport to the TSD at the given address.
+     *
+     * @param address the address of the TSD
+     */
+    public TelnetOutputStream(InetSocketAddress address) {
+        this(address, Clock.defaultClock());
+    }
+
+    /**
+     * Creates a new transport to the TSD at the given address, timing reconnect attempts with the
+     * given clock.
+     *
+     * @param address the address of the TSD
+     * @param clock   the clock used to time reconnect attempts
+     */
+    public TelnetOutputStream(InetSocketAddress address, Clock clock) {
+        this.address = address;
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the most bytes held while the TSD is unreachable; beyond it the oldest lines are
+     * dropped.
+     *
+     * @param maxBufferSize the most bytes to buffer
+     */
+    public void setMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Sets how long to wait for a connection to the TSD.
+     *
+     * @param connectTimeout the connect timeout, in milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Sets the bounds of the reconnect backoff, which starts at the minimum after the first failure
+     * and doubles with each further failure up to the maximum.
+     *
+     * @param minBackoff the first delay before reconnecting, in milliseconds
+     * @param maxBackoff the longest delay before reconnecting, in milliseconds
+     */
+    public void setBackoff(long minBackoff, long maxBackoff) {
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Opens a connection to the TSD, unless one is open or a reconnect is not yet due. Failures
+     * are not thrown here but by the next {@link #flush()}, so the lines of a report are still
+     * buffered for a later attempt.
+     */
+    @Override
+    public void connect() {
+        if (isConnected() || clock.getTime() < nextAttempt) {
+            return;
+        }
+        try {
+            open();
+        } catch (IOException ignored) {
+            // reported by flush()
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        final int end = off + len;
+        while (off < end) {
+            if (lineStart) {
+                append(PUT, 0, PUT.length);
+                lineStart = false;
+            }
+            int stop = off;
+            while (stop < end && data[stop] != '\n') {
+                stop++;
+            }
+            final boolean newline = stop < end;
+            if (newline) {
+                stop++;
+            }
+            append(data, off, stop - off);
+            if (newline) {
+                lineStart = true;
+                lineEnd = idx;
+            }
+            off = stop;
+        }
+    }
+
+    /**
+     * Writes every complete buffered line to the TSD in one write, connecting first if needed.
+     *
+     * @throws IOException if the TSD is unreachable; the lines are kept for the next flush
+     */
+    @Override
+    public void flush() throws IOException {
+        if (lineEnd == 0) {
+            return;
+        }
+        if (!isConnected()) {
+            if (clock.getTime() < nextAttempt) {
+                throw new IOException("Unable to reach " + address + ", holding " + lineEnd +
+                                              " bytes until the next attempt");
+            }
+            open();
+        }
+        pace(lineEnd);
+        try {
+            out.write(buffer, 0, lineEnd);
+            out.flush();
+            discardResponses();
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+        packetsSent++;
+        bytesSent += lineEnd;
+        backoff = 0;
+
+        System.arraycopy(buffer, lineEnd, buffer, 0, idx - lineEnd);
+        idx -= lineEnd;
+        lineEnd = 0;
+    }
+
+    /**
+     * Moves the complete buffered lines, without their {@code put} commands, into the spill file.
+     */
+    @Override
+    public void spillUnsent(SpillFile spill) {
+        if (spill != null) {
+            int start = 0;
+            while (start < lineEnd) {
+                int end = start + PUT.length;
+                while (buffer[end] != '\n') {
+                    end++;
+                }
+                spill.write(buffer, start + PUT.length, end + 1 - start - PUT.length);
+                start = end + 1;
+            }
+        }
+        System.arraycopy(buffer, lineEnd, buffer, 0, idx - lineEnd);
+        idx -= lineEnd;
+        lineEnd = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        disconnect();
+        idx = 0;
+        lineEnd = 0;
+        lineStart = true;
+    }
+
+    /**
+     * Returns the number of lines dropped because the buffer was full.
+     *
+     * @return the number of lines dropped
+     */
+    public long getLinesDropped() {
+        return linesDropped;
+    }
+
+    private void open() throws IOException {
+        final Socket s = new Socket();
+        try {
+            s.setKeepAlive(true);
+            s.connect(address, connectTimeout);
+            out = s.getOutputStream();
+            in = s.getInputStream();
+            socket = s;
+        } catch (IOException e) {
+            s.close();
+            failed();
+            throw e;
+        }
+    }
+
+    private void failed() {
+        disconnect();
+        backoff = backoff == 0 ? minBackoff : Math.min(backoff * 2, maxBackoff);
+        nextAttempt = clock.getTime() + backoff;
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // the connection is being thrown away anyway
+            }
+        }
+        socket = null;
+        out = null;
+        in = null;
+    }
+
+    /**
+     * The TSD answers malformed lines with an error message; read and discard whatever has
+     * arrived so its replies never back up.
+     */
+    private void discardResponses() throws IOException {
+        int available;
+        while ((available = in.available()) > 0) {
+            if (in.skip(available) <= 0) {
+                return;
+            }
+        }
+    }
+
+    private void append(byte[] data, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(data, off, buffer, idx, len);
+        idx += len;
+    }
+
+    private void ensureCapacity(int len) {
+        int required = idx + len;
+        if (required > maxBufferSize && lineEnd > 0) {
+            dropOldestLines(required - maxBufferSize);
+            required = idx + len;
+        }
+        if (required > buffer.length) {
+            final int grown = Math.min(buffer.length * 2, Math.max(maxBufferSize, required));
+            buffer = Arrays.copyOf(buffer, Math.max(grown, required));
+        }
+    }
+
+    /**
+     * Drops whole lines from the front of the buffer until at least the given number of bytes
+     * have been freed, or no complete lines are left.
+     */
+    private void dropOldestLines(int bytes) {
+        int cut = 0;
+        while (cut < lineEnd && cut < bytes) {
+            while (buffer[cut] != '\n') {
+                cut++;
+            }
+            cut++;
+            linesDropped++;
+        }
+        System.arraycopy(buffer, cut, buffer, 0, idx - cut);
+        idx -= cut;
+        lineEnd -= cut;
+    }
+}
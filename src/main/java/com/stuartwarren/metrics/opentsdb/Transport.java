@@ -0,0 +1,148 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A stream which carries measurement lines from an {@link OpenTSDB} client to the server. Lines
+ * have the form {@code metric timestamp value [tags]\n} and may arrive split across several
+ * writes; {@link #flush()} marks the end of a report.
+ * <p>
+ * A transport is opened lazily by {@link #connect()}, kept open across reports, and takes care of
+ * re-establishing itself after a failure.
+ * <p>
+ * Transports which send packets of a known size, such as {@link UDPOutputStream} and
+ * {@link TelnetOutputStream}, can be paced: each packet waits until a token bucket of packets
+ * and one of bytes allow it, so a report is spread out rather than overflowing the receiver's
+ * socket buffer in one burst.
+ */
+public abstract class Transport extends OutputStream {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    protected long packetsSent = 0;
+    protected long bytesSent = 0;
+
+    private volatile long packetRate = 0; // packets per second, or 0 for unlimited
+    private volatile long byteRate = 0; // bytes per second, or 0 for unlimited
+    private double packetTokens = 0;
+    private double byteTokens = 0;
+    private long lastRefill = 0;
+    private volatile long pacingDelay = 0; // nanoseconds
+
+    /**
+     * Opens the transport if it is not already open.
+     *
+     * @throws IOException if there is an error connecting
+     */
+    public abstract void connect() throws IOException;
+
+    /**
+     * Returns whether the transport is open.
+     *
+     * @return {@code true} if the transport is open
+     */
+    public abstract boolean isConnected();
+
+    /**
+     * Returns whether the client should flush after every line, sending each measurement on its
+     * own rather than batching a whole report.
+     *
+     * @return {@code true} if every line should be flushed
+     */
+    public boolean flushesEachLine() {
+        return false;
+    }
+
+    /**
+     * Moves the whole lines written but not yet sent, e.g. those held back by a failed write or
+     * flush, into the given spill file, and forgets them. The client calls this after a failure
+     * when it has a spill file. Transports which keep nothing back after a failure hold none.
+     *
+     * @param spill the spill file to keep the lines in, or {@code null} to drop them
+     */
+    public void spillUnsent(SpillFile spill) {
+    }
+
+    /**
+     * Returns the number of packets, writes or requests sent to the server.
+     *
+     * @return the number of packets sent to the server
+     */
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * Returns the number of payload bytes sent to the server.
+     *
+     * @return the number of payload bytes sent to the server
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Limits the rate packets are sent at. The buckets hold a hundredth of a second's worth of
+     * tokens, so only short bursts go out unpaced.
+     *
+     * @param packetsPerSecond the most packets to send per second, or 0 for no limit
+     * @param bytesPerSecond   the most payload bytes to send per second, or 0 for no limit
+     */
+    public void setPacing(long packetsPerSecond, long bytesPerSecond) {
+        if (packetsPerSecond < 0 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("rates must not be negative");
+        }
+        this.packetRate = packetsPerSecond;
+        this.byteRate = bytesPerSecond;
+    }
+
+    /**
+     * Returns the total time packets have waited to be paced.
+     *
+     * @return the pacing delay, in nanoseconds
+     */
+    public long getPacingDelay() {
+        return pacingDelay;
+    }
+
+    /**
+     * Waits until a packet of the given size may be sent, and takes its tokens. Implementations
+     * call this before sending each packet.
+     *
+     * @param bytes the size of the packet
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    protected void pace(int bytes) throws InterruptedIOException {
+        final long packetRate = this.packetRate;
+        final long byteRate = this.byteRate;
+        if (packetRate == 0 && byteRate == 0) {
+            return;
+        }
+        refill(packetRate, byteRate);
+        // tokens may go into debt for packets bigger than the bucket, which the next packet repays
+        final double wait = Math.max(packetRate == 0 ? 0 : -packetTokens / packetRate,
+                                     byteRate == 0 ? 0 : -byteTokens / byteRate);
+        if (wait > 0) {
+            final long nanos = (long) (wait * NANOS_PER_SECOND);
+            try {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing");
+            }
+            pacingDelay += nanos;
+            refill(packetRate, byteRate);
+        }
+        packetTokens -= 1;
+        byteTokens -= bytes;
+    }
+
+    private void refill(long packetRate, long byteRate) {
+        final long now = System.nanoTime();
+        final double seconds = (now - lastRefill) / (double) NANOS_PER_SECOND;
+        lastRefill = now;
+        packetTokens = Math.min(packetTokens + seconds * packetRate, Math.max(1, packetRate / 100.0));
+        byteTokens = Math.min(byteTokens + seconds * byteRate, Math.max(1, byteRate / 100.0));
+    }
+}
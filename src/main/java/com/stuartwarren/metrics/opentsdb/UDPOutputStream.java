@@ -38,21 +38,24 @@ limitations under the License.
 
 //package com.rbnb.utility;
 
-import java.io.OutputStream;
 import java.io.IOException;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 
-public class UDPOutputStream extends OutputStream {
+public class UDPOutputStream extends Transport {
 
     public static final int DEFAULT_BUFFER_SIZE = 1024;
     public static final int DEFAULT_MAX_BUFFER_SIZE = 8192;
+    public static final int ETHERNET_PAYLOAD_SIZE = 1472;
 
     protected DatagramSocket dsock = null;
+    protected DatagramChannel channel = null;
     DatagramPacket dpack = null;
     InetAddress iAdd = null;
     int port = 0;
@@ -62,6 +65,12 @@ public class UDPOutputStream extends OutputStream {
     int idx = 0; // buffer index; points to next empty buffer byte
     int bufferMax = DEFAULT_MAX_BUFFER_SIZE;
 
+    boolean packLines = false;
+    boolean discarding = false; // dropping the remainder of an oversized line
+    int lineEnd = 0; // points just past the last complete line in buffer
+    boolean midLine = false; // the last datagram ended inside a line; only when not packing
+    long linesDropped = 0;
+
     /********************** constructors ********************/
 /*
   *****************************************************************
@@ -216,11 +225,145 @@ public class UDPOutputStream extends OutputStream {
     public void open(InetAddress address, int portI)
             throws SocketException, IOException {
 
-        dsock = new DatagramSocket();
+        // a connected channel keeps one local port for the life of the
+        // stream and skips the per-send destination checks
+        channel = DatagramChannel.open();
+        try {
+            channel.connect(new InetSocketAddress(address, portI));
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+        dsock = channel.socket();
+        iAdd = address;
+        port = portI;
+    }
+
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  isOpen                                           ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Whether the stream has an open socket to write to.  ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    public boolean isOpen() {
+        return null != channel && channel.isOpen();
+    }
+
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  setAddress                                       ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Sets the address and port of the UDP socket to      ***
+  ***   write to, without opening it.  connect() opens it.      ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    public void setAddress(InetAddress address, int portI) {
         iAdd = address;
         port = portI;
     }
 
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  connect                                          ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Opens the UDP socket if it is not already open,     ***
+  ***   e.g. because a failed send closed it.                   ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    public void connect() throws IOException {
+        if (isOpen()) {
+            return;
+        }
+        if (null == iAdd) {
+            throw new IllegalStateException("No address to connect to");
+        }
+        open(iAdd, port);
+    }
+
+    public boolean isConnected() {
+        return isOpen();
+    }
+
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  send                                             ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Sends len bytes of data as one datagram, once the   ***
+  ***   pacing allows.  A failed send closes the socket so the  ***
+  ***   next connect() reopens it, keeping the buffer for       ***
+  ***   spillUnsent() or the next flush.                        ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    private void send(byte[] data, int len) throws IOException {
+        pace(len);
+        dpack = new DatagramPacket(data, len, iAdd, port);
+        try {
+            dsock.send(dpack);
+        } catch (IOException e) {
+            if (null != channel)
+                channel.close();
+            channel = null;
+            dsock = null;
+            throw e;
+        }
+        packetsSent++;
+        bytesSent += len;
+    }
+
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  spillUnsent                                      ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Moves the complete lines in the buffer into the     ***
+  ***   spill file, leaving any partial line.  Without line     ***
+  ***   packing the buffer may start with the rest of a line    ***
+  ***   whose start was sent, which is dropped.                 ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    public void spillUnsent(SpillFile spill) {
+        int end = lineEnd;
+        if (!packLines) {
+            end = idx;
+            while (end > 0 && buffer[end - 1] != '\n') {
+                end--;
+            }
+        }
+        if (end == 0) {
+            return;
+        }
+        int start = 0;
+        if (midLine) {
+            while (buffer[start] != '\n') {
+                start++;
+            }
+            start++;
+        }
+        if (null != spill && end > start) {
+            spill.write(buffer, start, end - start);
+        }
+        System.arraycopy(buffer, end, buffer, 0, idx - end);
+        idx -= end;
+        lineEnd = 0;
+        midLine = false;
+    }
+
 /*
   *****************************************************************
   ***                                                           ***
@@ -238,10 +381,14 @@ public class UDPOutputStream extends OutputStream {
   *****************************************************************
 */
     public void close() throws IOException {
-        if (null != dsock)
-            dsock.close();
+        if (null != channel)
+            channel.close();
+        channel = null;
         dsock = null;
         idx = 0;
+        lineEnd = 0;
+        midLine = false;
+        discarding = false;
     }
 
     /*********** writing to and flushing the buffer ************/
@@ -262,6 +409,11 @@ public class UDPOutputStream extends OutputStream {
   *****************************************************************
 */
     public void flush() throws IOException {
+        if (packLines) {
+            sendLines();
+            return;
+        }
+
         if (idx == 0) {  // no data in buffer
             return;
         }
@@ -280,13 +432,79 @@ public class UDPOutputStream extends OutputStream {
         }
 
         // send data
-        dpack = new DatagramPacket(outdata, idx, iAdd, port);
-        dsock.send(dpack);
+        send(outdata, idx);
+        midLine = buffer[idx - 1] != '\n';
 
         // reset buffer index
         idx = 0;
     }
 
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  sendLines                                        ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Sends every complete line in the buffer as a single ***
+  ***   datagram and moves any partial line to the front of the ***
+  ***   buffer.  Only used when packing lines.                  ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    private void sendLines() throws IOException {
+        if (lineEnd == 0) {  // no complete line in buffer
+            return;
+        }
+
+        send(buffer, lineEnd);
+
+        System.arraycopy(buffer, lineEnd, buffer, 0, idx - lineEnd);
+        idx -= lineEnd;
+        lineEnd = 0;
+    }
+
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  pack                                             ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Appends bytes to the buffer without ever splitting  ***
+  ***   a line across datagrams.  When the next byte would not  ***
+  ***   fit, the complete lines are sent and the partial line   ***
+  ***   carried over.  A line longer than the buffer can never  ***
+  ***   be sent whole, so it is dropped and counted.            ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    private void pack(byte[] data, int off, int len) throws IOException {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            pack(data[i]);
+        }
+    }
+
+    private void pack(byte b) throws IOException {
+        if (discarding) {
+            discarding = b != '\n';
+            return;
+        }
+        if (idx == buffer.length) {
+            if (lineEnd == 0) {
+                // the current line alone overflows the buffer
+                idx = 0;
+                linesDropped++;
+                discarding = b != '\n';
+                return;
+            }
+            sendLines();
+        }
+        buffer[idx++] = b;
+        if (b == '\n') {
+            lineEnd = idx;
+        }
+    }
+
 /*
   *****************************************************************
   ***                                                           ***
@@ -306,6 +524,11 @@ public class UDPOutputStream extends OutputStream {
   *****************************************************************
 */
     public void write(int value) throws IOException {
+        if (packLines) {
+            pack((byte) (value & 0x0ff));
+            return;
+        }
+
         buffer[idx] = (byte) (value & 0x0ff);
         idx++;
 
@@ -353,6 +576,11 @@ public class UDPOutputStream extends OutputStream {
   *****************************************************************
 */
     public void write(byte[] data, int off, int len) throws IOException {
+        if (packLines) {
+            pack(data, off, len);
+            return;
+        }
+
         int lenRemaining = len;
 
         try {
@@ -454,6 +682,7 @@ public class UDPOutputStream extends OutputStream {
             flush();
         } catch (IOException ioe) {}
 
+        final byte[] old = buffer;
         if (buffSize == buffer.length) {
             // a no-op; we are already the right size
             return;
@@ -466,5 +695,62 @@ public class UDPOutputStream extends OutputStream {
         } else {
             buffer = new byte[1];
         }
+
+        // when packing, a partial line may still be waiting for its end
+        if (idx > buffer.length) {
+            idx = 0;
+            linesDropped++;
+            discarding = true;
+        } else if (idx > 0) {
+            System.arraycopy(old, 0, buffer, 0, idx);
+        }
+    }
+
+    /******************* line packing accesors ******************/
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  setLinePacking()                                 ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       When enabled, the buffer is only sent once the next ***
+  ***   line would not fit or flush() is called, and a line is  ***
+  ***   never split across two datagrams.  Size the buffer to   ***
+  ***   the largest payload the network carries unfragmented,   ***
+  ***   e.g. ETHERNET_PAYLOAD_SIZE.                             ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    public void setLinePacking(boolean pack) {
+        try {
+            flush();
+        } catch (IOException ioe) {}
+
+        packLines = pack;
+        lineEnd = 0;
+        discarding = false;
+    }
+
+    public boolean isLinePacking() {
+        return packLines;
+    }
+
+    public boolean flushesEachLine() {
+        return !packLines;
+    }
+
+/*
+  *****************************************************************
+  ***                                                           ***
+  ***  Name :  getLinesDropped                                  ***
+  ***                                                           ***
+  ***  Description :                                            ***
+  ***       Counts the lines dropped for being larger than the  ***
+  ***   buffer since the stream was created.                    ***
+  ***                                                           ***
+  *****************************************************************
+*/
+    public long getLinesDropped() {
+        return linesDropped;
     }
 }
@@ -0,0 +1,153 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AsyncSenderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final BlockingTransport transport = new BlockingTransport();
+    private final OpenTSDB opentsdb = new OpenTSDB(transport);
+
+    @Test
+    public void sendsBatchesOnItsOwnThread() throws Exception {
+        transport.release.countDown();
+        final AsyncSender sender = new AsyncSender(opentsdb, 2, 4, OverflowPolicy.DROP_NEWEST);
+
+        sender.submit(batch(sender, "a"));
+        sender.close(5000);
+
+        assertThat(transport.lines()).containsExactly("a 1 1");
+        assertThat(transport.threadName).isEqualTo("opentsdb-sender");
+        // once as the queue ran empty, and once as the sending thread closed the client
+        assertThat(transport.flushes).isEqualTo(2);
+    }
+
+    @Test
+    public void dropsTheNewestBatchWhenFull() throws Exception {
+        final AsyncSender sender = new AsyncSender(opentsdb, 2, 1, OverflowPolicy.DROP_NEWEST);
+
+        fill(sender);
+        sender.submit(batch(sender, "c"));
+        transport.release.countDown();
+        sender.close(5000);
+
+        assertThat(transport.lines()).containsExactly("a 1 1", "b 1 1");
+        assertThat(sender.getBatchesDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void dropsTheOldestBatchWhenFull() throws Exception {
+        final AsyncSender sender = new AsyncSender(opentsdb, 2, 1, OverflowPolicy.DROP_OLDEST);
+
+        fill(sender);
+        sender.submit(batch(sender, "c"));
+        transport.release.countDown();
+        sender.close(5000);
+
+        assertThat(transport.lines()).containsExactly("a 1 1", "c 1 1");
+        assertThat(sender.getBatchesDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void reusesSentBatches() throws Exception {
+        transport.release.countDown();
+        final AsyncSender sender = new AsyncSender(opentsdb, 2, 4, OverflowPolicy.DROP_NEWEST);
+        final LineEncoder batch = batch(sender, "a");
+
+        sender.submit(batch);
+        sender.close(5000);
+
+        assertThat(sender.acquire()).isSameAs(batch);
+        assertThat(batch.lines()).isZero();
+    }
+
+    @Test
+    public void leavesClosingTheClientToAThreadStillSending() throws Exception {
+        final AsyncSender sender = new AsyncSender(opentsdb, 2, 4, OverflowPolicy.DROP_NEWEST);
+        sender.submit(batch(sender, "a"));
+        assertThat(transport.writing.await(5, TimeUnit.SECONDS)).isTrue();
+
+        sender.close(10);
+
+        assertThat(transport.closed.getCount()).isEqualTo(1);
+
+        transport.release.countDown();
+
+        assertThat(transport.closed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(transport.lines()).containsExactly("a 1 1");
+    }
+
+    /**
+     * Blocks the sender on batch a, and queues batch b behind it.
+     */
+    private void fill(AsyncSender sender) throws Exception {
+        sender.submit(batch(sender, "a"));
+        assertThat(transport.writing.await(5, TimeUnit.SECONDS)).isTrue();
+        sender.submit(batch(sender, "b"));
+
+        assertThat(sender.getQueueDepth()).isEqualTo(1);
+    }
+
+    private static LineEncoder batch(AsyncSender sender, String name) {
+        return sender.acquire().line(null, name, null, 1, 1L, "");
+    }
+
+    private static class BlockingTransport extends Transport {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile String threadName;
+        private volatile int flushes;
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            threadName = Thread.currentThread().getName();
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        private List<String> lines() {
+            final String text = new String(bytes.toByteArray(), UTF_8);
+            return text.isEmpty() ? Arrays.<String>asList() : Arrays.asList(text.split("\n"));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CardinalityGuardTest {
+    private final Clock clock = mock(Clock.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(clock.getTime()).thenReturn(0L);
+    }
+
+    @Test
+    public void capsNewNamesPerPrefixPerWindow() throws Exception {
+        final CardinalityGuard guard = new CardinalityGuard(2, 60000, 100, 2, clock);
+
+        assertThat(guard.admit("api.requests.a")).isTrue();
+        assertThat(guard.admit("api.requests.b")).isTrue();
+        assertThat(guard.admit("api.requests.c")).isFalse();
+        assertThat(guard.admit("api.errors.a")).isTrue();
+        assertThat(guard.admit("api.requests.a")).isTrue();
+        assertThat(guard.getRejections()).isEqualTo(1);
+
+        when(clock.getTime()).thenReturn(60000L);
+
+        assertThat(guard.admit("api.requests.c")).isTrue();
+    }
+
+    @Test
+    public void estimatesTheNewNamesOfARunawayPrefix() throws Exception {
+        final CardinalityGuard guard = new CardinalityGuard(10, 60000, 100, 2, clock);
+        for (int i = 0; i < 50000; i++) {
+            guard.admit("api.requests." + i);
+        }
+
+        assertThat(guard.estimateNewNames("api.requests")).isGreaterThan(45000).isLessThan(55000);
+        assertThat(guard.estimateNewNames("api.errors")).isZero();
+        assertThat(guard.getRejections()).isEqualTo(49990);
+    }
+}
@@ -0,0 +1,176 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ConcurrentSenderTest {
+    private final CountingTransport transport = new CountingTransport();
+
+    @Test
+    public void sendsEveryPointFromManyThreads() throws Exception {
+        final ConcurrentSender sender = new ConcurrentSender(new OpenTSDB(transport), 4, 256, 10,
+                                                             TimeUnit.MILLISECONDS);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        sender.send("events.thread" + thread, i, 100, "");
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sender.close();
+
+        assertThat(sender.getPointsDropped()).isZero();
+        assertThat(transport.lines.get()).isEqualTo(40000);
+    }
+
+    @Test
+    public void sendsAPartlyFilledBatchAfterTheFlushInterval() throws Exception {
+        final ConcurrentSender sender = new ConcurrentSender(new OpenTSDB(transport), 1, 4, 10,
+                                                             TimeUnit.MILLISECONDS);
+        try {
+            sender.send("deploys", 1, 100, "app=web");
+
+            assertThat(transport.flushed.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(transport.lines.get()).isEqualTo(1);
+        } finally {
+            sender.close();
+        }
+    }
+
+    @Test
+    public void dropsPointsWhenEveryBatchIsFull() throws Exception {
+        transport.blocked = new CountDownLatch(1);
+        final ConcurrentSender sender = new ConcurrentSender(new OpenTSDB(transport), 1, 2, 1,
+                                                             TimeUnit.HOURS);
+        int accepted = 0;
+        for (int i = 0; i < 2000; i++) {
+            if (sender.send("events.metric", 1.5, 100, "")) {
+                accepted++;
+            }
+        }
+        transport.blocked.countDown();
+        sender.close();
+
+        assertThat(sender.getPointsDropped()).isEqualTo(2000 - accepted).isGreaterThan(0);
+        assertThat(transport.lines.get()).isEqualTo(accepted);
+    }
+
+    @Test
+    public void sendsEveryPointAcceptedWhileClosing() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final CountingTransport transport = new CountingTransport();
+            final ConcurrentSender sender = new ConcurrentSender(new OpenTSDB(transport), 4, 256,
+                                                                 1, TimeUnit.HOURS);
+            final AtomicInteger attempted = new AtomicInteger();
+            final AtomicInteger accepted = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(4);
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        boolean sent = true;
+                        while (sent) {
+                            attempted.incrementAndGet();
+                            sent = sender.send("events.metric", 1, 100, "");
+                            if (sent) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            started.await();
+            sender.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertThat(transport.lines.get()).isEqualTo(accepted.get());
+            assertThat(sender.getPointsDropped()).isEqualTo(attempted.get() - accepted.get());
+        }
+    }
+
+    @Test
+    public void leavesClosingTheClientToAFlushingThreadStillSending() throws Exception {
+        transport.blocked = new CountDownLatch(1);
+        final ConcurrentSender sender = new ConcurrentSender(new OpenTSDB(transport), 1, 4, 10,
+                                                             TimeUnit.MILLISECONDS);
+        sender.send("deploys", 1, 100, "app=web");
+        assertThat(transport.writing.await(5, TimeUnit.SECONDS)).isTrue();
+
+        sender.close(10);
+
+        assertThat(transport.closed.getCount()).isEqualTo(1);
+        transport.blocked.countDown();
+        assertThat(transport.closed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(transport.lines.get()).isEqualTo(1);
+    }
+
+    private static class CountingTransport extends Transport {
+        private final AtomicInteger lines = new AtomicInteger();
+        private final CountDownLatch flushed = new CountDownLatch(1);
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile CountDownLatch blocked;
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                lines.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writing.countDown();
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushed.countDown();
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+}
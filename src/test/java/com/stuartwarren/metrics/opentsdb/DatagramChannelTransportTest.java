@@ -0,0 +1,108 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DatagramChannelTransportTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private DatagramSocket receiver;
+    private DatagramChannelTransport output;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        receiver.setSoTimeout(1000);
+        output = new DatagramChannelTransport(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()), 32, 2);
+        output.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        output.close();
+        receiver.close();
+    }
+
+    @Test
+    public void packsWholeLinesIntoOneDatagram() throws Exception {
+        write("a 1 1\n");
+        write("b 1 2\n");
+        write("c 1 3\n");
+
+        assertThat(output.getPacketsSent()).isZero();
+
+        output.flush();
+
+        assertThat(receive()).isEqualTo("a 1 1\nb 1 2\nc 1 3\n");
+        assertThat(output.getPacketsSent()).isEqualTo(1);
+        assertThat(output.getBytesSent()).isEqualTo(18);
+    }
+
+    @Test
+    public void neverSplitsALineAcrossDatagrams() throws Exception {
+        write("metric.one 100 1\nmetric.two 100 2\n");
+        output.flush();
+
+        assertThat(receive()).isEqualTo("metric.one 100 1\n");
+        assertThat(receive()).isEqualTo("metric.two 100 2\n");
+    }
+
+    @Test
+    public void carriesPartialLinesOverToTheNextDatagram() throws Exception {
+        write("metric.one 100 1\nmetric.t");
+        output.flush();
+
+        assertThat(receive()).isEqualTo("metric.one 100 1\n");
+
+        write("wo 100 2\n");
+        output.flush();
+
+        assertThat(receive()).isEqualTo("metric.two 100 2\n");
+    }
+
+    @Test
+    public void sendsBeforeTheReportEndsWhenThePoolIsFull() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            write("metric." + i + " 1000 " + (10 + i) + "\n");   // 17 bytes, one per datagram
+        }
+
+        assertThat(output.getPacketsSent()).isGreaterThan(0);
+
+        output.flush();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(receive()).isEqualTo("metric." + i + " 1000 " + (10 + i) + "\n");
+        }
+        assertThat(output.getPacketsSent()).isEqualTo(10);
+    }
+
+    @Test
+    public void dropsLinesLongerThanADatagram() throws Exception {
+        write("a.very.long.metric.name.indeed 100 1\n");
+        write("short 100 1\n");
+        output.flush();
+
+        assertThat(receive()).isEqualTo("short 100 1\n");
+        assertThat(output.getLinesDropped()).isEqualTo(1);
+    }
+
+    private void write(String s) throws Exception {
+        final byte[] bytes = s.getBytes(UTF_8);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private String receive() throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+        receiver.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+    }
+}
@@ -0,0 +1,85 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DecimalFormatterTest {
+    private static final double[] VALUES = { 0.0, -0.0, 0.005, 0.015, 0.125, -0.125, 0.5, 1.5, 2.5,
+            1.005, 2.675, 0.994999, 0.995, 9.995, 99.995, 0.0005, 0.0015, 1e-300, -1e-300, -0.001,
+            Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, 1e15, 1.5e17, 1e18, 9.2e16,
+            1e300, -1e300, Double.MAX_VALUE, Long.MAX_VALUE, 123456789.125, 4503599627370495.5,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+    @Test
+    public void formatsLikeStringFormat() throws Exception {
+        for (int decimals = 0; decimals <= 5; decimals++) {
+            final DecimalFormatter formatter = new DecimalFormatter(decimals);
+            for (double v : VALUES) {
+                assertFormatsLikeStringFormat(formatter, v);
+            }
+        }
+    }
+
+    @Test
+    public void formatsRandomDoublesLikeStringFormat() throws Exception {
+        final Random random = new Random(42);
+        for (int decimals = 0; decimals <= 4; decimals++) {
+            final DecimalFormatter formatter = new DecimalFormatter(decimals);
+            for (int i = 0; i < 50000; i++) {
+                assertFormatsLikeStringFormat(formatter, Double.longBitsToDouble(random.nextLong()));
+                assertFormatsLikeStringFormat(formatter, (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20)));
+                assertFormatsLikeStringFormat(formatter, random.nextInt(100000) / 1000.0);
+            }
+        }
+    }
+
+    @Test
+    public void formatsValuesAroundEveryRoundingBoundaryLikeStringFormat() throws Exception {
+        final DecimalFormatter formatter = new DecimalFormatter();
+        for (int i = -100000; i <= 100000; i++) {
+            final double boundary = (i + 0.5) / 100;
+            assertFormatsLikeStringFormat(formatter, boundary);
+            assertFormatsLikeStringFormat(formatter, nextDown(boundary));
+            assertFormatsLikeStringFormat(formatter, nextUp(boundary));
+        }
+    }
+
+    @Test
+    public void doesNotSignZero() throws Exception {
+        final DecimalFormatter formatter = new DecimalFormatter();
+
+        assertThat(format(formatter, -0.0)).isEqualTo("0.00");
+        assertThat(format(formatter, -0.001)).isEqualTo("0.00");
+        assertThat(format(formatter, -0.005)).isEqualTo("-0.01");
+        assertThat(format(new DecimalFormatter(5), -1e-300)).isEqualTo("0.00000");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeDecimals() throws Exception {
+        new DecimalFormatter(-1);
+    }
+
+    private static void assertFormatsLikeStringFormat(DecimalFormatter formatter, double v) {
+        String expected = String.format(Locale.US, "%." + formatter.getDecimals() + "f", v);
+        if (expected.matches("-[0.]+")) {
+            expected = expected.substring(1);
+        }
+        assertThat(format(formatter, v)).as(Double.toString(v)).isEqualTo(expected);
+    }
+
+    private static String format(DecimalFormatter formatter, double v) {
+        return new String(formatter.bytes(), 0, formatter.format(v));
+    }
+
+    private static double nextUp(double v) {
+        return Math.nextAfter(v, Double.POSITIVE_INFINITY);
+    }
+
+    private static double nextDown(double v) {
+        return Math.nextAfter(v, Double.NEGATIVE_INFINITY);
+    }
+}
@@ -0,0 +1,158 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.failBecauseExceptionWasNotThrown;
+
+public class HttpOutputStreamTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int status = 204;
+
+    private HttpServer server;
+    private HttpOutputStream output;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                paths.add(exchange.getRequestURI().getPath());
+                bodies.add(read(in));
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        output = new HttpOutputStream(new URL("http://127.0.0.1:" + server.getAddress().getPort()));
+        output.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        output.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void postsDataPointsAsAJsonArray() throws Exception {
+        write("name 100 1.50 host=a dc=b\n");
+        write("other 100 2 host=a\n");
+        output.flush();
+
+        assertThat(paths).containsExactly("/api/put");
+        assertThat(bodies).containsExactly(
+                "[{\"metric\":\"name\",\"timestamp\":100,\"value\":1.50,\"tags\":{\"host\":\"a\",\"dc\":\"b\"}}," +
+                "{\"metric\":\"other\",\"timestamp\":100,\"value\":2,\"tags\":{\"host\":\"a\"}}]");
+        assertThat(output.getPacketsSent()).isEqualTo(1);
+    }
+
+    @Test
+    public void batchesByPointCount() throws Exception {
+        output.setMaxBatchPoints(2);
+        write("a 1 1 host=a\nb 1 2 host=a\nc 1 3 host=a\n");
+        output.flush();
+
+        assertThat(bodies).hasSize(2);
+        assertThat(bodies.get(0)).contains("\"a\"").contains("\"b\"");
+        assertThat(bodies.get(1)).contains("\"c\"");
+    }
+
+    @Test
+    public void batchesByByteSize() throws Exception {
+        output.setMaxBatchBytes(10);
+        write("a 1 1 host=a\nb 1 2 host=a\n");
+
+        assertThat(bodies).hasSize(2);
+    }
+
+    @Test
+    public void gzipsBodies() throws Exception {
+        output.setGzip(true);
+        write("name 100 1 host=a\n");
+        output.flush();
+
+        assertThat(bodies).containsExactly(
+                "[{\"metric\":\"name\",\"timestamp\":100,\"value\":1,\"tags\":{\"host\":\"a\"}}]");
+    }
+
+    @Test
+    public void streamsChunkedBodies() throws Exception {
+        output.setChunkedStreaming(true);
+        output.setGzip(true);
+        write("name 100 1 host=a\n");
+        output.flush();
+
+        assertThat(bodies).containsExactly(
+                "[{\"metric\":\"name\",\"timestamp\":100,\"value\":1,\"tags\":{\"host\":\"a\"}}]");
+    }
+
+    @Test
+    public void escapesNamesAndQuotesNonNumericValues() throws Exception {
+        write("na\"me 100 value host=a\\b\n");
+        output.flush();
+
+        assertThat(bodies).containsExactly(
+                "[{\"metric\":\"na\\\"me\",\"timestamp\":100,\"value\":\"value\",\"tags\":{\"host\":\"a\\\\b\"}}]");
+    }
+
+    @Test
+    public void dropsMalformedLines() throws Exception {
+        write("name-only\n");
+        output.flush();
+
+        assertThat(bodies).isEmpty();
+        assertThat(output.getLinesDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void failsOnRejectedBatches() throws Exception {
+        status = 400;
+        write("name 100 1 host=a\n");
+        try {
+            output.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("HTTP 400");
+        }
+    }
+
+    private void write(String s) throws Exception {
+        final byte[] bytes = s.getBytes(UTF_8);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[256];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, read);
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,139 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LineEncoderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final LineEncoder encoder = new LineEncoder(64, UTF_8);
+
+    @Test
+    public void encodesWholeNumberLines() throws Exception {
+        encoder.line("prefix", "name", "count", 100, 42L, "");
+
+        assertThat(text()).isEqualTo("prefix.name.count 100 42\n");
+    }
+
+    @Test
+    public void encodesDecimalLines() throws Exception {
+        encoder.line("prefix", "name", "mean", 100, 1.1, "host=a");
+
+        assertThat(text()).isEqualTo("prefix.name.mean 100 1.10 host=a\n");
+    }
+
+    @Test
+    public void encodesRepeatedAndMillisecondTimestamps() throws Exception {
+        encoder.line(null, "a", null, 1000198000123L, 1L, "");
+        encoder.line(null, "b", null, 1000198000123L, 2L, "");
+        encoder.line(null, "c", null, 7, 3L, "");
+        encoder.line(null, "d", null, 0, 4L, "");
+
+        assertThat(text()).isEqualTo("a 1000198000123 1\nb 1000198000123 2\nc 7 3\nd 0 4\n");
+    }
+
+    @Test
+    public void joinsNamesLikeTheRegistry() throws Exception {
+        encoder.line(null, "name", null, 1, 1L, "");
+        encoder.line("", "name", "", 1, 1L, "");
+        encoder.line("prefix", "name", null, 1, 1L, "");
+
+        assertThat(text()).isEqualTo(MetricRegistry.name((String) null, "name") + " 1 1\n" +
+                                     MetricRegistry.name("", "name", "") + " 1 1\n" +
+                                     MetricRegistry.name("prefix", "name") + " 1 1\n");
+    }
+
+    @Test
+    public void encodesLinesWithPreEncodedNamesAndTags() throws Exception {
+        final byte[] name = encoder.name("prefix", "na me", "p99");
+        final byte[] tags = encoder.tags("host=a");
+
+        assertThat(encoder.size()).isZero();
+
+        encoder.line(name, 100, 42L, tags);
+        encoder.line(name, 101, 1.5, new byte[0]);
+
+        assertThat(text()).isEqualTo("prefix.na-me.p99 100 42 host=a\n" +
+                                     "prefix.na-me.p99 101 1.50\n");
+    }
+
+    @Test
+    public void sanitizesNames() throws Exception {
+        encoder.line(null, "name \t woo", null, 1, 1L, "");
+
+        assertThat(text()).isEqualTo("name-woo 1 1\n");
+    }
+
+    @Test
+    public void encodesNonAsciiNamesAsUtf8() throws Exception {
+        encoder.line(null, "café.€.😀", null, 1, 1L, "");
+
+        assertThat(text()).isEqualTo("café.€.😀 1 1\n");
+    }
+
+    @Test
+    public void encodesExtremeWholeNumbers() throws Exception {
+        encoder.line(null, "a", null, 0, Long.MIN_VALUE, "");
+        encoder.line(null, "b", null, Long.MAX_VALUE, -1L, "");
+
+        assertThat(text()).isEqualTo("a 0 " + Long.MIN_VALUE + "\n" +
+                                     "b " + Long.MAX_VALUE + " -1\n");
+    }
+
+    @Test
+    public void encodesDecimalsWithTheGivenPlaces() throws Exception {
+        final LineEncoder precise = new LineEncoder(64, UTF_8, 3);
+        precise.line(null, "n", null, 1, 1.2345, "");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        precise.writeTo(out);
+
+        assertThat(new String(out.toByteArray(), UTF_8)).isEqualTo("n 1 1.235\n");
+    }
+
+    @Test
+    public void skipsNonFiniteValues() throws Exception {
+        encoder.line(null, "a", null, 1, Double.NaN, "");
+        encoder.line(null, "b", null, 1, Double.POSITIVE_INFINITY, "");
+        encoder.line(encoder.name(null, "c", null), 1, Double.NEGATIVE_INFINITY, new byte[0]);
+        encoder.line(null, "d", null, 1, 1.0, "");
+
+        assertThat(encoder.lines()).isEqualTo(1);
+        assertThat(text()).isEqualTo("d 1 1.00\n");
+    }
+
+    @Test
+    public void growsToFitLongLines() throws Exception {
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            name.append('x');
+        }
+        encoder.line(null, name.toString(), null, 1, 1L, "");
+
+        assertThat(text()).isEqualTo(name + " 1 1\n");
+    }
+
+    @Test
+    public void countsLinesAndClears() throws Exception {
+        encoder.line(null, "a", null, 1, 1L, "");
+        encoder.line(null, "b", null, 1, 1L, "");
+
+        assertThat(encoder.lines()).isEqualTo(2);
+
+        encoder.clear();
+
+        assertThat(encoder.lines()).isZero();
+        assertThat(encoder.size()).isZero();
+    }
+
+    private String text() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
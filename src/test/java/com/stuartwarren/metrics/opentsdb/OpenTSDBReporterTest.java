@@ -3,18 +3,26 @@ package com.stuartwarren.metrics.opentsdb;
 import com.codahale.metrics.*;
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.InOrder;
+import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
+import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 
 public class OpenTSDBReporterTest {
     private final long timestamp = 1000198;
     private final Clock clock = mock(Clock.class);
-    private final OpenTSDB opentsdb = mock(OpenTSDB.class);
+    private final RecordingTransport transport = new RecordingTransport();
+    private final OpenTSDB opentsdb = new OpenTSDB(transport);
     private final MetricRegistry registry = mock(MetricRegistry.class);
     private final OpenTSDBReporter reporter = OpenTSDBReporter.forRegistry(registry)
                                                               .withClock(clock)
@@ -37,12 +45,8 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb, never()).send("prefix.gauge", "value", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).isEmpty();
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -53,12 +57,9 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.gauge", "1", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.gauge", "1"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -69,12 +70,9 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.gauge", "1", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.gauge", "1"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -85,12 +83,9 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.gauge", "1", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.gauge", "1"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -101,12 +96,9 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.gauge", "1", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.gauge", "1"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -117,12 +109,9 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.gauge", "1.10", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.gauge", "1.10"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -133,12 +122,9 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.gauge", "1.10", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.gauge", "1.10"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -152,12 +138,9 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.counter.count", "100", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.counter.count", "100"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -185,22 +168,19 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.histogram.count", "1", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.max", "2", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.mean", "3.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.min", "4", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.stddev", "5.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.p50", "6.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.p75", "7.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.p95", "8.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.p98", "9.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.p99", "10.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.histogram.p999", "11.00", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.histogram.count", "1"),
+                line("prefix.histogram.max", "2"),
+                line("prefix.histogram.mean", "3.00"),
+                line("prefix.histogram.min", "4"),
+                line("prefix.histogram.stddev", "5.00"),
+                line("prefix.histogram.p50", "6.00"),
+                line("prefix.histogram.p75", "7.00"),
+                line("prefix.histogram.p95", "8.00"),
+                line("prefix.histogram.p98", "9.00"),
+                line("prefix.histogram.p99", "10.00"),
+                line("prefix.histogram.p999", "11.00"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -218,16 +198,13 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map("meter", meter),
                         this.<Timer>map());
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.meter.count", "1", timestamp);
-        inOrder.verify(opentsdb).send("prefix.meter.m1_rate", "2.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.meter.m5_rate", "3.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.meter.m15_rate", "4.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.meter.mean_rate", "5.00", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.meter.count", "1"),
+                line("prefix.meter.m1_rate", "2.00"),
+                line("prefix.meter.m5_rate", "3.00"),
+                line("prefix.meter.m15_rate", "4.00"),
+                line("prefix.meter.mean_rate", "5.00"));
+        assertThat(transport.flushes).isEqualTo(1);
     }
 
     @Test
@@ -260,26 +237,591 @@ public class OpenTSDBReporterTest {
                         this.<Meter>map(),
                         map("timer", timer));
 
-        final InOrder inOrder = inOrder(opentsdb);
-        inOrder.verify(opentsdb).connect();
-        inOrder.verify(opentsdb).send("prefix.timer.max", "100.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.mean", "200.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.min", "300.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.stddev", "400.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.p50", "500.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.p75", "600.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.p95", "700.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.p98", "800.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.p99", "900.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.p999", "1000.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.count", "1", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.m1_rate", "3.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.m5_rate", "4.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.m15_rate", "5.00", timestamp);
-        inOrder.verify(opentsdb).send("prefix.timer.mean_rate", "2.00", timestamp);
-        inOrder.verify(opentsdb).close();
-
-        verifyNoMoreInteractions(opentsdb);
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.timer.max", "100.00"),
+                line("prefix.timer.mean", "200.00"),
+                line("prefix.timer.min", "300.00"),
+                line("prefix.timer.stddev", "400.00"),
+                line("prefix.timer.p50", "500.00"),
+                line("prefix.timer.p75", "600.00"),
+                line("prefix.timer.p95", "700.00"),
+                line("prefix.timer.p98", "800.00"),
+                line("prefix.timer.p99", "900.00"),
+                line("prefix.timer.p999", "1000.00"),
+                line("prefix.timer.count", "1"),
+                line("prefix.timer.m1_rate", "3.00"),
+                line("prefix.timer.m5_rate", "4.00"),
+                line("prefix.timer.m15_rate", "5.00"),
+                line("prefix.timer.mean_rate", "2.00"));
+        assertThat(transport.flushes).isEqualTo(1);
+    }
+
+    @Test
+    public void keepsTheConnectionOpenBetweenReports() throws Exception {
+        reporter.report(this.<Gauge>map(),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+        reporter.report(this.<Gauge>map(),
+                        this.<Counter>map(),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+
+        assertThat(transport.flushes).isEqualTo(2);
+        assertThat(transport.closes).isZero();
+    }
+
+    @Test
+    public void closesTheConnectionWhenStopped() throws Exception {
+        reporter.stop();
+
+        assertThat(transport.closes).isEqualTo(1);
+    }
+
+    @Test
+    public void sendsAsynchronouslyWhenAsked() throws Exception {
+        final OpenTSDBReporter async = OpenTSDBReporter.forRegistry(registry)
+                                                       .withClock(clock)
+                                                       .prefixedWith("prefix")
+                                                       .sendAsynchronously(4, OverflowPolicy.DROP_OLDEST)
+                                                       .build(opentsdb);
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(100L);
+
+        async.report(this.<Gauge>map(),
+                     this.<Counter>map("counter", counter),
+                     this.<Histogram>map(),
+                     this.<Meter>map(),
+                     this.<Timer>map());
+        async.stop();
+
+        assertThat(transport.lines()).containsExactly(line("prefix.counter.count", "100"));
+        assertThat(transport.flushes).isEqualTo(2);
+        assertThat(transport.closes).isEqualTo(1);
+        assertThat(async.getBatchesDropped()).isZero();
+    }
+
+    @Test
+    public void snapshotsLargeReportsInParallelInOrder() throws Exception {
+        final OpenTSDBReporter parallel = OpenTSDBReporter.forRegistry(registry)
+                                                          .withClock(clock)
+                                                          .prefixedWith("prefix")
+                                                          .snapshotInParallel(4)
+                                                          .build(opentsdb);
+        final SortedMap<String, Counter> counters = map();
+        final SortedMap<String, Histogram> histograms = map();
+        for (int i = 0; i < OpenTSDBReporter.PARALLEL_THRESHOLD; i++) {
+            final Counter counter = new Counter();
+            counter.inc(i);
+            counters.put(String.format("counter%03d", i), counter);
+            final Histogram histogram = new Histogram(new UniformReservoir());
+            histogram.update(i);
+            histogram.update(i * 2);
+            histograms.put(String.format("histogram%03d", i), histogram);
+        }
+
+        parallel.report(this.<Gauge>map(), counters, histograms, this.<Meter>map(), this.<Timer>map());
+        final List<String> inParallel = transport.lines();
+        transport.bytes.reset();
+        reporter.report(this.<Gauge>map(), counters, histograms, this.<Meter>map(), this.<Timer>map());
+
+        assertThat(inParallel).hasSize(OpenTSDBReporter.PARALLEL_THRESHOLD * 12);
+        assertThat(inParallel).isEqualTo(transport.lines());
+        assertThat(transport.flushes).isEqualTo(2);
+
+        parallel.stop();
+    }
+
+    @Test
+    public void releasesTheEncodersOfAFailedParallelReport() throws Exception {
+        final OpenTSDB spied = spy(opentsdb);
+        final OpenTSDBReporter parallel = OpenTSDBReporter.forRegistry(registry)
+                                                          .withClock(clock)
+                                                          .snapshotInParallel(4)
+                                                          .sendAsynchronously(4, OverflowPolicy.DROP_OLDEST)
+                                                          .build(spied);
+        final SortedMap<String, Histogram> histograms = map();
+        for (int i = 0; i < OpenTSDBReporter.PARALLEL_THRESHOLD; i++) {
+            histograms.put(String.format("histogram%03d", i), new Histogram(new UniformReservoir()));
+        }
+        final Histogram broken = mock(Histogram.class);
+        when(broken.getSnapshot()).thenThrow(new IllegalStateException("broken"));
+        histograms.put("histogram000", broken);
+
+        parallel.report(this.<Gauge>map(), this.<Counter>map(), histograms, this.<Meter>map(), this.<Timer>map());
+        parallel.report(this.<Gauge>map(), this.<Counter>map(), histograms, this.<Meter>map(), this.<Timer>map());
+
+        // one for the report, four for the runs, and four taken from the sender by the first report
+        verify(spied, times(9)).newEncoder(anyInt());
+        assertThat(transport.lines()).isEmpty();
+
+        parallel.stop();
+    }
+
+    @Test
+    public void suppressesUnchangedValuesUntilTheHeartbeat() throws Exception {
+        final OpenTSDBReporter suppressing = OpenTSDBReporter.forRegistry(registry)
+                                                             .withClock(clock)
+                                                             .suppressUnchangedValues(60, TimeUnit.SECONDS)
+                                                             .build(opentsdb);
+        final Counter counter = new Counter();
+        final SortedMap<String, Gauge> gauges = map("gauge", gauge(1.5));
+
+        reportAt(suppressing, 1000, gauges, counter);
+        reportAt(suppressing, 1010, gauges, counter);
+        counter.inc();
+        reportAt(suppressing, 1020, gauges, counter);
+        reportAt(suppressing, 1060, gauges, counter);
+
+        assertThat(transport.lines()).containsExactly(
+                "gauge 1000 1.50",
+                "counter.count 1000 0",
+                "counter.count 1020 1",
+                "gauge 1060 1.50");
+    }
+
+    @Test
+    public void reportsCounterDeltas() throws Exception {
+        final OpenTSDBReporter deltas = OpenTSDBReporter.forRegistry(registry)
+                                                        .withClock(clock)
+                                                        .reportCounterDeltas()
+                                                        .build(opentsdb);
+        final Counter counter = new Counter();
+        counter.inc(5);
+
+        reportAt(deltas, 1000, this.<Gauge>map(), counter);
+        counter.inc(3);
+        reportAt(deltas, 1010, this.<Gauge>map(), counter);
+        reportAt(deltas, 1020, this.<Gauge>map(), counter);
+
+        assertThat(transport.lines()).containsExactly(
+                "counter.count 1010 3",
+                "counter.count 1020 0");
+    }
+
+    @Test
+    public void onlyRecordsTheCountOnTheFirstReportOfACounterDelta() throws Exception {
+        final OpenTSDBReporter deltas = OpenTSDBReporter.forRegistry(registry)
+                                                        .withClock(clock)
+                                                        .reportCounterDeltas()
+                                                        .build(opentsdb);
+        final Counter counter = new Counter();
+        counter.inc(5);
+
+        reportAt(deltas, 1000, this.<Gauge>map(), counter);
+
+        assertThat(transport.lines()).isEmpty();
+    }
+
+    @Test
+    public void doesNotReportCounterDeltasBeyondTheNameCache() throws Exception {
+        final OpenTSDBReporter deltas = OpenTSDBReporter.forRegistry(registry)
+                                                        .withClock(clock)
+                                                        .withNameCacheSize(1)
+                                                        .reportCounterDeltas()
+                                                        .build(opentsdb);
+        final SortedMap<String, Counter> counters = map();
+        counters.put("cached", new Counter());
+        counters.put("uncached", new Counter());
+
+        for (int i = 0; i < 3; i++) {
+            counters.get("cached").inc(5);
+            counters.get("uncached").inc(5);
+            deltas.report(this.<Gauge>map(), counters, this.<Histogram>map(), this.<Meter>map(), this.<Timer>map());
+        }
+
+        assertThat(transport.lines()).containsExactly(
+                line("cached.count", "5"),
+                line("cached.count", "5"));
+    }
+
+    @Test
+    public void reportsOnlySelectedAttributesWithoutSnapshotting() throws Exception {
+        final OpenTSDBReporter selective = OpenTSDBReporter.forRegistry(registry)
+                                                           .withClock(clock)
+                                                           .withTimerAttributes(EnumSet.of(MetricAttribute.COUNT,
+                                                                                           MetricAttribute.M1_RATE))
+                                                           .build(opentsdb);
+        final Timer timer = mock(Timer.class);
+        when(timer.getCount()).thenReturn(1L);
+        when(timer.getOneMinuteRate()).thenReturn(3.0);
+
+        selective.report(this.<Gauge>map(),
+                         this.<Counter>map(),
+                         this.<Histogram>map(),
+                         this.<Meter>map(),
+                         map("timer", timer));
+
+        assertThat(transport.lines()).containsExactly(
+                line("timer.count", "1"),
+                line("timer.m1_rate", "3.00"));
+        verify(timer, never()).getSnapshot();
+    }
+
+    @Test
+    public void overridesAttributesForMatchingNames() throws Exception {
+        final OpenTSDBReporter selective = OpenTSDBReporter.forRegistry(registry)
+                                                           .withClock(clock)
+                                                           .withHistogramAttributes(EnumSet.of(MetricAttribute.COUNT))
+                                                           .withAttributes(Pattern.compile("latency\\..*"),
+                                                                           EnumSet.of(MetricAttribute.P99))
+                                                           .withAttributes(Pattern.compile("ignored"),
+                                                                           EnumSet.noneOf(MetricAttribute.class))
+                                                           .build(opentsdb);
+        final Histogram histogram = new Histogram(new UniformReservoir());
+        histogram.update(5);
+        final SortedMap<String, Histogram> histograms = map();
+        histograms.put("latency.db", histogram);
+        histograms.put("sizes", histogram);
+
+        selective.report(this.<Gauge>map(),
+                         this.<Counter>map("ignored", new Counter()),
+                         histograms,
+                         this.<Meter>map(),
+                         this.<Timer>map());
+
+        assertThat(transport.lines()).containsExactly(
+                line("latency.db.p99", "5.00"),
+                line("sizes.count", "1"));
+    }
+
+    @Test
+    public void downsamplesMatchingMetrics() throws Exception {
+        final OpenTSDBReporter downsampling = OpenTSDBReporter.forRegistry(registry)
+                                                              .withClock(clock)
+                                                              .withoutDownsampling(Pattern.compile("gauge"))
+                                                              .downsample(Pattern.compile(".*"), 1, TimeUnit.MINUTES,
+                                                                          Aggregation.MAX)
+                                                              .build(opentsdb);
+        final Counter counter = new Counter();
+        final SortedMap<String, Gauge> gauges = map("gauge", gauge(1));
+
+        for (long time = 1000; time <= 1090; time += 10) {
+            counter.inc();
+            reportAt(downsampling, time, gauges, counter);
+        }
+
+        final List<String> lines = transport.lines();
+        assertThat(lines).contains("counter.count 960 2", "counter.count 1020 8");
+        assertThat(lines).doesNotContain("counter.count 1080 10");
+        assertThat(lines).contains("gauge 1000 1", "gauge 1090 1");
+        assertThat(lines).hasSize(12);
+    }
+
+    @Test
+    public void averagesDownsampledValues() throws Exception {
+        final OpenTSDBReporter downsampling = OpenTSDBReporter.forRegistry(registry)
+                                                              .withClock(clock)
+                                                              .downsample(Pattern.compile(".*"), 30, TimeUnit.SECONDS,
+                                                                          Aggregation.AVG)
+                                                              .build(opentsdb);
+        final Counter counter = new Counter();
+
+        for (long time = 990; time <= 1020; time += 10) {
+            counter.inc();
+            reportAt(downsampling, time, this.<Gauge>map(), counter);
+        }
+
+        assertThat(transport.lines()).containsExactly("counter.count 990 2.00");
+    }
+
+    @Test
+    public void reportsTagsExtractedFromNamesAndGlobalTags() throws Exception {
+        final OpenTSDBReporter tagging = OpenTSDBReporter.forRegistry(registry)
+                                                         .withClock(clock)
+                                                         .prefixedWith("prefix")
+                                                         .withTag("host", "a")
+                                                         .extractTagsWith(new RegexTagExtractor(
+                                                                 Pattern.compile("(api\\.requests)\\.([^.]+)\\.([^.]+)"),
+                                                                 "method",
+                                                                 "status"))
+                                                         .build(opentsdb);
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(100L);
+
+        tagging.report(this.<Gauge>map(),
+                       this.<Counter>map("api.requests.GET.200", counter),
+                       this.<Histogram>map(),
+                       this.<Meter>map(),
+                       this.<Timer>map());
+
+        assertThat(transport.lines()).containsExactly(
+                line("prefix.api.requests.count", "100", "host=a method=GET status=200"));
+        assertThat(transport.flushes).isEqualTo(1);
+    }
+
+    @Test
+    public void cachesNamesBetweenReports() throws Exception {
+        final TagExtractor extractor = spy(new RegexTagExtractor(Pattern.compile("(.*)")));
+        final OpenTSDBReporter caching = OpenTSDBReporter.forRegistry(registry)
+                                                         .withClock(clock)
+                                                         .extractTagsWith(extractor)
+                                                         .build(opentsdb);
+        final SortedMap<String, Counter> counters = map("counter", mock(Counter.class));
+
+        caching.report(this.<Gauge>map(), counters, this.<Histogram>map(), this.<Meter>map(), this.<Timer>map());
+        caching.report(this.<Gauge>map(), counters, this.<Histogram>map(), this.<Meter>map(), this.<Timer>map());
+
+        verify(extractor, times(1)).extract("counter");
+        assertThat(transport.lines()).containsExactly(line("counter.count", "0"), line("counter.count", "0"));
+    }
+
+    @Test
+    public void evictsNamesOfRemovedMetrics() throws Exception {
+        final TagExtractor extractor = spy(new RegexTagExtractor(Pattern.compile("(.*)")));
+        final OpenTSDBReporter caching = OpenTSDBReporter.forRegistry(registry)
+                                                         .withClock(clock)
+                                                         .extractTagsWith(extractor)
+                                                         .build(opentsdb);
+        final ArgumentCaptor<MetricRegistryListener> listener = ArgumentCaptor.forClass(MetricRegistryListener.class);
+        verify(registry, times(2)).addListener(listener.capture());
+        final SortedMap<String, Counter> counters = map("counter", mock(Counter.class));
+
+        caching.report(this.<Gauge>map(), counters, this.<Histogram>map(), this.<Meter>map(), this.<Timer>map());
+        listener.getValue().onCounterRemoved("counter");
+        caching.report(this.<Gauge>map(), counters, this.<Histogram>map(), this.<Meter>map(), this.<Timer>map());
+
+        verify(extractor, times(2)).extract("counter");
+
+        caching.stop();
+
+        verify(registry).removeListener(listener.getValue());
+    }
+
+    @Test
+    public void instrumentsItselfWithoutReportingItsOwnMetrics() throws Exception {
+        final MetricRegistry metrics = new MetricRegistry();
+        final OpenTSDBReporter instrumented = OpenTSDBReporter.forRegistry(metrics)
+                                                              .withClock(clock)
+                                                              .instrumentWith(metrics)
+                                                              .build(opentsdb);
+        metrics.counter("counter").inc();
+
+        instrumented.report();
+        instrumented.report();
+
+        assertThat(transport.lines()).containsExactly(
+                "counter.count 1000198 1",
+                "counter.count 1000198 1");
+        assertThat(metrics.timer("opentsdb-reporter.report").getCount()).isEqualTo(2);
+        assertThat(metrics.histogram("opentsdb-reporter.points").getSnapshot().getValues())
+                .containsOnly(1L);
+        assertThat(metrics.histogram("opentsdb-reporter.bytes-encoded").getSnapshot().getValues())
+                .containsOnly(24L);
+
+        instrumented.stop();
+
+        assertThat(metrics.getNames()).containsOnly("counter");
+    }
+
+    @Test
+    public void streamsReportsAskingTheFilterOncePerName() throws Exception {
+        final MetricRegistry metrics = new MetricRegistry();
+        final MetricFilter filter = spy(new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return !name.startsWith("ignored");
+            }
+        });
+        final OpenTSDBReporter streaming = OpenTSDBReporter.forRegistry(metrics)
+                                                           .withClock(clock)
+                                                           .filter(filter)
+                                                           .streamReports()
+                                                           .build(opentsdb);
+        metrics.counter("counter").inc();
+        metrics.counter("ignored").inc();
+
+        streaming.report();
+        streaming.report();
+
+        verify(filter, times(1)).matches(eq("counter"), any(Metric.class));
+        verify(filter, times(1)).matches(eq("ignored"), any(Metric.class));
+        assertThat(transport.lines()).containsExactly(
+                "counter.count 1000198 1",
+                "counter.count 1000198 1");
+
+        metrics.remove("counter");
+        metrics.counter("counter").inc(2);
+        streaming.report();
+
+        verify(filter, times(2)).matches(eq("counter"), any(Metric.class));
+        assertThat(transport.lines()).endsWith("counter.count 1000198 2");
+
+        streaming.stop();
+    }
+
+    @Test
+    public void replansStreamedReportsWhenMetricsAreAddedOrRemoved() throws Exception {
+        final MetricRegistry metrics = new MetricRegistry();
+        final TagExtractor extractor = spy(new RegexTagExtractor(Pattern.compile("(.*)")));
+        final OpenTSDBReporter streaming = OpenTSDBReporter.forRegistry(metrics)
+                                                           .withClock(clock)
+                                                           .extractTagsWith(extractor)
+                                                           .streamReports()
+                                                           .build(opentsdb);
+        metrics.counter("first").inc();
+
+        streaming.report();
+        metrics.counter("second").inc(2);
+        streaming.report();
+        metrics.remove("first");
+        streaming.report();
+
+        verify(extractor, times(1)).extract("first");
+        verify(extractor, times(1)).extract("second");
+        assertThat(transport.lines().subList(0, 1)).containsExactly("first.count 1000198 1");
+        assertThat(transport.lines().subList(1, 3)).containsOnly("first.count 1000198 1",
+                                                                 "second.count 1000198 2");
+        assertThat(transport.lines().subList(3, 4)).containsExactly("second.count 1000198 2");
+
+        streaming.stop();
+    }
+
+    @Test
+    public void keepsStreamedPlansWithoutWalkingTheRegistry() throws Exception {
+        final MetricRegistry metrics = spy(new MetricRegistry());
+        final OpenTSDBReporter streaming = OpenTSDBReporter.forRegistry(metrics)
+                                                           .withClock(clock)
+                                                           .streamReports()
+                                                           .build(opentsdb);
+        metrics.counter("a").inc();
+        metrics.counter("b").inc();
+        metrics.counter("c").inc();
+        metrics.counter("d").inc();
+
+        streaming.report();
+        metrics.remove("b");
+        metrics.counter("e").inc();
+        streaming.report();
+
+        verify(metrics, never()).getMetrics();
+        assertThat(transport.lines().subList(4, 8)).containsOnly("a.count 1000198 1",
+                                                                 "c.count 1000198 1",
+                                                                 "d.count 1000198 1",
+                                                                 "e.count 1000198 1");
+
+        streaming.stop();
+    }
+
+    @Test
+    public void timestampsEachMetricInMilliseconds() throws Exception {
+        final OpenTSDBReporter millis = OpenTSDBReporter.forRegistry(registry)
+                                                        .withClock(clock)
+                                                        .withMillisecondTimestamps()
+                                                        .timestampEachMetric()
+                                                        .build(opentsdb);
+        when(clock.getTime()).thenReturn(1000198000L, 1000198001L, 1000198002L, 1000198003L);
+        final Counter counter = new Counter();
+        counter.inc();
+
+        millis.report(map("gauge", gauge(1)),
+                      this.<Counter>map("counter", counter),
+                      this.<Histogram>map(),
+                      this.<Meter>map(),
+                      this.<Timer>map());
+
+        assertThat(transport.lines()).containsExactly(
+                "gauge 1000198001 1",
+                "counter.count 1000198002 1");
+    }
+
+    @Test
+    public void scalesTheHeartbeatToMillisecondTimestamps() throws Exception {
+        final OpenTSDBReporter millis = OpenTSDBReporter.forRegistry(registry)
+                                                        .withClock(clock)
+                                                        .withMillisecondTimestamps()
+                                                        .suppressUnchangedValues(60, TimeUnit.SECONDS)
+                                                        .build(opentsdb);
+        final Counter counter = new Counter();
+        final SortedMap<String, Gauge> gauges = map("gauge", gauge(1.5));
+
+        reportAt(millis, 1000, gauges, counter);
+        reportAt(millis, 1059, gauges, counter);
+        reportAt(millis, 1060, gauges, counter);
+
+        assertThat(transport.lines()).containsExactly(
+                "gauge 1000000 1.50",
+                "counter.count 1000000 0",
+                "gauge 1060000 1.50",
+                "counter.count 1060000 0");
+    }
+
+    @Test
+    public void dropsNewNamesOverTheLimit() throws Exception {
+        final OpenTSDBReporter limited = OpenTSDBReporter.forRegistry(registry)
+                                                         .withClock(clock)
+                                                         .limitNewSeries(2, 1, TimeUnit.MINUTES, CardinalityOverflow.DROP)
+                                                         .build(opentsdb);
+        final SortedMap<String, Gauge> gauges = map();
+        gauges.put("requests.id.1", gauge(1));
+        gauges.put("requests.id.2", gauge(2));
+        gauges.put("requests.id.3", gauge(3));
+
+        limited.report(gauges,
+                       this.<Counter>map(),
+                       this.<Histogram>map(),
+                       this.<Meter>map(),
+                       this.<Timer>map());
+
+        assertThat(transport.lines()).containsExactly(
+                line("requests.id.1", "1"),
+                line("requests.id.2", "2"));
+        assertThat(limited.getNamesRejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void collapsesNewNamesOverTheLimitIntoAnOverflowSeries() throws Exception {
+        final OpenTSDBReporter limited = OpenTSDBReporter.forRegistry(registry)
+                                                         .withClock(clock)
+                                                         .limitNewSeries(1, 1, TimeUnit.MINUTES, CardinalityOverflow.COLLAPSE)
+                                                         .build(opentsdb);
+        final SortedMap<String, Counter> counters = map();
+        counters.put("requests.id.1", new Counter());
+        counters.put("requests.id.2", new Counter());
+        counters.put("requests.id.3", new Counter());
+        counters.put("sessions.id.1", new Counter());
+        counters.put("sessions.id.2", new Counter());
+        final SortedMap<String, Timer> timers = map();
+        timers.put("requests.id.4", new Timer());
+
+        for (int i = 0; i < 2; i++) {
+            limited.report(this.<Gauge>map(),
+                           counters,
+                           this.<Histogram>map(),
+                           this.<Meter>map(),
+                           timers);
+        }
+
+        // one point per prefix and report, counting the names left out of it
+        assertThat(transport.lines()).containsExactly(
+                line("requests.id.1.count", "0"),
+                line("sessions.id.1.count", "0"),
+                line("requests.id.cardinality-overflow", "3"),
+                line("sessions.id.cardinality-overflow", "1"),
+                line("requests.id.1.count", "0"),
+                line("sessions.id.1.count", "0"),
+                line("requests.id.cardinality-overflow", "3"),
+                line("sessions.id.cardinality-overflow", "1"));
+        assertThat(limited.getNamesRejected()).isEqualTo(8);
+    }
+
+    private void reportAt(OpenTSDBReporter reporter, long time, SortedMap<String, Gauge> gauges, Counter counter) {
+        when(clock.getTime()).thenReturn(time * 1000);
+        reporter.report(gauges,
+                        this.<Counter>map("counter", counter),
+                        this.<Histogram>map(),
+                        this.<Meter>map(),
+                        this.<Timer>map());
+    }
+
+    private String line(String name, String value) {
+        return name + " " + timestamp + " " + value;
+    }
+
+    private String line(String name, String value, String tags) {
+        return line(name, value) + " " + tags;
     }
 
     private <T> SortedMap<String, T> map() {
@@ -297,4 +839,50 @@ public class OpenTSDBReporterTest {
         when(gauge.getValue()).thenReturn(value);
         return gauge;
     }
+
+    private static class RecordingTransport extends Transport {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private boolean connected;
+        private int flushes;
+        private int closes;
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            connected = false;
+            closes++;
+        }
+
+        private List<String> lines() throws Exception {
+            final String text = bytes.toString("UTF-8");
+            if (text.length() == 0) {
+                return new ArrayList<String>();
+            }
+            return Arrays.asList(text.split("\n"));
+        }
+    }
 }
@@ -1,98 +1,141 @@
-//package com.stuartwarren.metrics.opentsdb;
-//
-////FIXME - Copied from graphite
-//
-//import org.junit.Before;
-//import org.junit.Test;
-//
-//import javax.net.SocketFactory;
-//
-//import java.io.ByteArrayOutputStream;
-//import java.net.DatagramSocket;
-//import java.net.InetAddress;
-//import java.net.InetSocketAddress;
-//import java.net.Socket;
-//
-//import static org.fest.assertions.api.Assertions.assertThat;
-//import static org.fest.assertions.api.Fail.failBecauseExceptionWasNotThrown;
-//import static org.mockito.Matchers.any;
-//import static org.mockito.Matchers.anyInt;
-//import static org.mockito.Mockito.*;
-//
-//public class OpenTSDBTest {
-//    //private final SocketFactory socketFactory = mock(SocketFactory.class);
-//    private final InetSocketAddress address = new InetSocketAddress("example.com", 1234);
-//    private final OpenTSDB opentsdb = new OpenTSDB(address);
-//
-//    private final DatagramSocket socket = mock(DatagramSocket.class);
-//    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
-//
-//    @Before
-//    public void setUp() throws Exception {
-//        when(socket.getOutputStream()).thenReturn(output);
-//
-//        when(socketFactory.createSocket(any(InetAddress.class),
-//                                        anyInt())).thenReturn(socket);
-//
-//    }
-//
-//    @Test
-//    public void connectsToOpenTSDB() throws Exception {
-//        opentsdb.connect();
-//
-//        verify(socketFactory).createSocket(address.getAddress(), address.getPort());
-//    }
-//
-//    @Test
-//    public void measuresFailures() throws Exception {
-//        assertThat(opentsdb.getFailures())
-//                .isZero();
-//    }
-//
-//    @Test
-//    public void disconnectsFromOpenTSDB() throws Exception {
-//        opentsdb.connect();
-//        opentsdb.close();
-//
-//        verify(socket).close();
-//    }
-//
-//    @Test
-//    public void doesNotAllowDoubleConnections() throws Exception {
-//        opentsdb.connect();
-//        try {
-//            opentsdb.connect();
-//            failBecauseExceptionWasNotThrown(IllegalStateException.class);
-//        } catch (IllegalStateException e) {
-//            assertThat(e.getMessage())
-//                    .isEqualTo("Already connected");
-//        }
-//    }
-//
-//    @Test
-//    public void writesValuesToOpenTSDB() throws Exception {
-//        opentsdb.connect();
-//        opentsdb.send("name", "value", 100);
-//
-//        assertThat(output.toString())
-//                .isEqualTo("name value 100\n");
-//    }
-//
-//    @Test
-//    public void sanitizesNames() throws Exception {
-//        opentsdb.connect();
-//        opentsdb.send("name woo", "value", 100);
-//
-//        assertThat(output.toString())
-//                .isEqualTo("name-woo value 100\n");
-//    }
-//
-//    @Test
-//    public void sanitizesValues() throws Exception {
-//        opentsdb.connect();
-//        opentsdb.send("name", "value woo", 100);
-//
-//        assertThat(output.toString())
-//                .isEqualTo("name value-woo 100\n");
-//    }
-//}
+package com.stuartwarren.metrics.opentsdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class OpenTSDBTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private DatagramSocket receiver;
+    private OpenTSDB opentsdb;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        receiver.setSoTimeout(1000);
+        opentsdb = new OpenTSDB(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        opentsdb.close();
+        receiver.close();
+    }
+
+    @Test
+    public void measuresFailures() throws Exception {
+        assertThat(opentsdb.getFailures())
+                .isZero();
+    }
+
+    @Test
+    public void connectsLazily() throws Exception {
+        assertThat(opentsdb.isConnected()).isFalse();
+
+        opentsdb.send("name", "value", 100);
+
+        assertThat(opentsdb.isConnected()).isTrue();
+    }
+
+    @Test
+    public void allowsRepeatedConnects() throws Exception {
+        opentsdb.connect();
+        opentsdb.connect();
+
+        assertThat(opentsdb.isConnected()).isTrue();
+    }
+
+    @Test
+    public void reusesTheConnectionAcrossFlushes() throws Exception {
+        opentsdb.send("name", "1", 100);
+        opentsdb.flush();
+        final int firstPort = receive().getPort();
+
+        opentsdb.send("name", "2", 101);
+        opentsdb.flush();
+
+        assertThat(receive().getPort()).isEqualTo(firstPort);
+    }
+
+    @Test
+    public void disconnectsFromOpenTSDB() throws Exception {
+        opentsdb.connect();
+        opentsdb.close();
+
+        assertThat(opentsdb.isConnected()).isFalse();
+    }
+
+    @Test
+    public void writesValuesToOpenTSDB() throws Exception {
+        opentsdb.send("name", "value", 100);
+
+        assertThat(text(receive()))
+                .isEqualTo("name 100 value\n");
+    }
+
+    @Test
+    public void sanitizesNames() throws Exception {
+        opentsdb.send("name woo", "value", 100);
+
+        assertThat(text(receive()))
+                .isEqualTo("name-woo 100 value\n");
+    }
+
+    @Test
+    public void letsSubclassesSanitizeNamesAndValues() throws Exception {
+        final OpenTSDB lowercasing = new OpenTSDB(new InetSocketAddress("127.0.0.1", receiver.getLocalPort())) {
+            @Override
+            protected String sanitize(String s) {
+                return super.sanitize(s).toLowerCase();
+            }
+        };
+        try {
+            lowercasing.send("Name Woo", "Value", 100);
+
+            assertThat(text(receive()))
+                    .isEqualTo("name-woo 100 value\n");
+        } finally {
+            lowercasing.close();
+        }
+    }
+
+    @Test
+    public void sanitizesValues() throws Exception {
+        opentsdb.send("name", "value woo", 100);
+
+        assertThat(text(receive()))
+                .isEqualTo("name 100 value-woo\n");
+    }
+
+    @Test
+    public void writesTagsToOpenTSDB() throws Exception {
+        final Map<String, String> tags = new LinkedHashMap<String, String>();
+        tags.put("host", "a b");
+        tags.put("dc", "c=d");
+        opentsdb.send("name", "value", 100, tags);
+
+        assertThat(text(receive()))
+                .isEqualTo("name 100 value host=a-b dc=c-d\n");
+    }
+
+    private DatagramPacket receive() throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+        receiver.receive(packet);
+        return packet;
+    }
+
+    private String text(DatagramPacket packet) {
+        return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+    }
+}
@@ -0,0 +1,98 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ReportingHubTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RecordingTransport transport = new RecordingTransport();
+    private final ReportingHub hub = new ReportingHub(new OpenTSDB(transport));
+
+    @After
+    public void tearDown() throws Exception {
+        hub.close();
+    }
+
+    @Test
+    public void reportsSeveralRegistriesThroughOneClient() throws Exception {
+        final MetricRegistry first = new MetricRegistry();
+        first.counter("first").inc();
+        final MetricRegistry second = new MetricRegistry();
+        second.counter("second").inc();
+        final OpenTSDBReporter one = OpenTSDBReporter.forRegistry(first).build(hub);
+        final OpenTSDBReporter two = OpenTSDBReporter.forRegistry(second).build(hub);
+
+        one.start(50, TimeUnit.MILLISECONDS);
+        two.start(50, TimeUnit.MILLISECONDS);
+
+        assertThat(transport.sent.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(transport.text()).contains("first.count").contains("second.count");
+        assertThat(transport.threadName).isEqualTo("opentsdb-sender");
+    }
+
+    @Test
+    public void leavesTheClientOpenWhenAReporterStops() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        registry.counter("counter").inc();
+        final OpenTSDBReporter reporter = OpenTSDBReporter.forRegistry(registry).build(hub);
+        reporter.start(1, TimeUnit.HOURS);
+
+        reporter.stop();
+
+        assertThat(transport.closes).isZero();
+
+        hub.close();
+
+        assertThat(transport.closes).isEqualTo(1);
+    }
+
+    private static class RecordingTransport extends Transport {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final CountDownLatch sent = new CountDownLatch(2);
+        private volatile String threadName;
+        private volatile int closes;
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            threadName = Thread.currentThread().getName();
+            bytes.write(b, off, len);
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    sent.countDown();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closes++;
+        }
+
+        private synchronized String text() {
+            return new String(bytes.toByteArray(), UTF_8);
+        }
+    }
+}
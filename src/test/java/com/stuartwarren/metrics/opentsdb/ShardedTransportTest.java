@@ -0,0 +1,275 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ShardedTransportTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Clock clock = mock(Clock.class);
+    private final Endpoint[] endpoints = { new Endpoint(), new Endpoint(), new Endpoint() };
+
+    @Before
+    public void setUp() throws Exception {
+        when(clock.getTime()).thenReturn(0L);
+    }
+
+    @Test
+    public void sendsEveryLineOfAMetricToTheSameEndpoint() throws Exception {
+        final ShardedTransport transport = transport(Routing.consistentHash());
+        for (int i = 0; i < 100; i++) {
+            write(transport, "metric" + (i % 20) + " 100 " + i + "\n");
+        }
+        transport.flush();
+
+        final Set<String> seen = new HashSet<String>();
+        int used = 0;
+        for (Endpoint endpoint : endpoints) {
+            final Set<String> names = endpoint.names();
+            for (String name : names) {
+                assertThat(seen.add(name)).isTrue();
+            }
+            if (!names.isEmpty()) {
+                used++;
+            }
+        }
+        assertThat(seen).hasSize(20);
+        assertThat(used).isEqualTo(3);
+    }
+
+    @Test
+    public void movesOnlyTheMetricsOfAFailedEndpoint() throws Exception {
+        final ShardedTransport transport = transport(Routing.consistentHash());
+        for (int i = 0; i < 20; i++) {
+            write(transport, "metric" + i + " 100 1\n");
+        }
+        transport.flush();
+        final Set<String> before0 = endpoints[0].names();
+        final Set<String> before2 = endpoints[2].names();
+
+        endpoints[1].failing = true;
+        for (int i = 0; i < 20; i++) {
+            write(transport, "metric" + i + " 101 1\n");
+        }
+        transport.flush();
+
+        assertThat(transport.isHealthy(1)).isFalse();
+        assertThat(endpoints[0].names()).containsAll(before0);
+        assertThat(endpoints[2].names()).containsAll(before2);
+        assertThat(endpoints[0].lines() + endpoints[2].lines()).isEqualTo(20 + before0.size() + before2.size());
+    }
+
+    @Test
+    public void spreadsLinesInTurn() throws Exception {
+        final ShardedTransport transport = transport(Routing.roundRobin());
+        write(transport, "a 1 1\nb 1 2\nc 1 3\nd 1 4\n");
+        transport.flush();
+
+        assertThat(endpoints[0].text()).isEqualTo("a 1 1\nd 1 4\n");
+        assertThat(endpoints[1].text()).isEqualTo("b 1 2\n");
+        assertThat(endpoints[2].text()).isEqualTo("c 1 3\n");
+    }
+
+    @Test
+    public void failsOverToTheStandbyUntilThePrimaryIsRetried() throws Exception {
+        final ShardedTransport transport = transport(Routing.failover());
+        transport.setRetryInterval(1000);
+        endpoints[0].failing = true;
+
+        write(transport, "a 1 1\n");
+        transport.flush();
+
+        assertThat(endpoints[0].text()).isEmpty();
+        assertThat(endpoints[1].text()).isEqualTo("a 1 1\n");
+
+        endpoints[0].failing = false;
+        write(transport, "b 1 2\n");
+        transport.flush();
+
+        assertThat(endpoints[1].text()).isEqualTo("a 1 1\nb 1 2\n");
+
+        when(clock.getTime()).thenReturn(1000L);
+        write(transport, "c 1 3\n");
+        transport.flush();
+
+        assertThat(endpoints[0].text()).isEqualTo("c 1 3\n");
+    }
+
+    @Test
+    public void failsWhenNoEndpointIsLeft() throws Exception {
+        final ShardedTransport transport = transport(Routing.failover());
+        for (Endpoint endpoint : endpoints) {
+            endpoint.failing = true;
+        }
+        write(transport, "a 1 1\n");
+
+        try {
+            transport.flush();
+            throw new AssertionError("expected an IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void joinsLinesSplitAcrossWrites() throws Exception {
+        final ShardedTransport transport = transport(Routing.failover());
+        write(transport, "metric 1");
+        write(transport, "00 1\nb 1 2\n");
+        transport.flush();
+
+        assertThat(endpoints[0].text()).isEqualTo("metric 100 1\nb 1 2\n");
+    }
+
+    @Test
+    public void shardsOverLoopbackReceivers() throws Exception {
+        final DatagramSocket first = receiver();
+        final DatagramSocket second = receiver();
+        final OpenTSDB opentsdb = new OpenTSDB(Arrays.asList(address(first), address(second)),
+                                               Routing.roundRobin());
+        try {
+            opentsdb.send("a", "1", 100);
+            opentsdb.send("b", "2", 100);
+            opentsdb.flush();
+
+            assertThat(receive(first)).isEqualTo("a 100 1\n");
+            assertThat(receive(second)).isEqualTo("b 100 2\n");
+        } finally {
+            opentsdb.close();
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void packsWholeLinesIntoEachLoopbackDatagram() throws Exception {
+        final DatagramSocket first = receiver();
+        final DatagramSocket second = receiver();
+        final OpenTSDB opentsdb = new OpenTSDB(Arrays.asList(address(first), address(second)),
+                                               Routing.roundRobin());
+        try {
+            final StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 400; i++) {
+                opentsdb.send("metric" + i, Integer.toString(i), 100);
+                if (i % 2 == 0) {
+                    expected.append("metric").append(i).append(" 100 ").append(i).append('\n');
+                }
+            }
+            opentsdb.flush();
+
+            final StringBuilder received = new StringBuilder();
+            int datagrams = 0;
+            while (received.length() < expected.length()) {
+                final String datagram = receive(first);
+                assertThat(datagram.length()).isLessThanOrEqualTo(UDPOutputStream.ETHERNET_PAYLOAD_SIZE);
+                assertThat(datagram).endsWith("\n");
+                received.append(datagram);
+                datagrams++;
+            }
+            assertThat(datagrams).isGreaterThan(1);
+            assertThat(received.toString()).isEqualTo(expected.toString());
+        } finally {
+            opentsdb.close();
+            first.close();
+            second.close();
+        }
+    }
+
+    private ShardedTransport transport(Routing routing) {
+        return new ShardedTransport(Arrays.asList(endpoints), routing, clock);
+    }
+
+    private static void write(ShardedTransport transport, String lines) throws IOException {
+        final byte[] bytes = lines.getBytes(UTF_8);
+        transport.write(bytes, 0, bytes.length);
+    }
+
+    private static DatagramSocket receiver() throws Exception {
+        final DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(1000);
+        return socket;
+    }
+
+    private static InetSocketAddress address(DatagramSocket socket) {
+        return new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+    }
+
+    private static String receive(DatagramSocket socket) throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        socket.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+    }
+
+    private static class Endpoint extends Transport {
+        private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private boolean failing;
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (failing) {
+                throw new IOException("down");
+            }
+            pending.writeTo(sent);
+            pending.reset();
+        }
+
+        @Override
+        public void close() {
+            pending.reset();
+        }
+
+        private String text() throws IOException {
+            return sent.toString("UTF-8");
+        }
+
+        private int lines() throws IOException {
+            final String text = text();
+            return text.isEmpty() ? 0 : text.split("\n").length;
+        }
+
+        private Set<String> names() throws IOException {
+            final Set<String> names = new HashSet<String>();
+            for (String line : text().split("\n")) {
+                if (!line.isEmpty()) {
+                    names.add(line.substring(0, line.indexOf(' ')));
+                }
+            }
+            return names;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.failBecauseExceptionWasNotThrown;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpillFileTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Clock clock = mock(Clock.class);
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        when(clock.getTime()).thenReturn(0L);
+        file = new File(folder.getRoot(), "spill");
+    }
+
+    @Test
+    public void keepsLinesAcrossReopening() throws Exception {
+        final SpillFile spill = new SpillFile(file, 64, clock);
+        write(spill, "a 1 1\nb 1 2\n");
+        spill.close();
+
+        final SpillFile reopened = new SpillFile(file, 64, clock);
+
+        assertThat(reopened.getSize()).isEqualTo(12);
+        assertThat(read(reopened)).isEqualTo("a 1 1\nb 1 2\n");
+    }
+
+    @Test
+    public void startsAfreshWithADifferentCapacity() throws Exception {
+        final SpillFile spill = new SpillFile(file, 64, clock);
+        write(spill, "a 1 1\n");
+        spill.close();
+
+        assertThat(new SpillFile(file, 32, clock).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void evictsTheOldestWholeLines() throws Exception {
+        final SpillFile spill = new SpillFile(file, 16, clock);
+        write(spill, "a 1 1\nb 1 2\n");
+        write(spill, "c 1 3\n");
+
+        assertThat(read(spill)).isEqualTo("b 1 2\nc 1 3\n");
+        assertThat(spill.getBytesEvicted()).isEqualTo(6);
+    }
+
+    @Test
+    public void keepsTheNewestLinesOfAWriteLongerThanTheRing() throws Exception {
+        final SpillFile spill = new SpillFile(file, 8, clock);
+        write(spill, "a 1 1\nb 1 2\n");
+
+        assertThat(read(spill)).isEqualTo("b 1 2\n");
+        assertThat(spill.getBytesEvicted()).isEqualTo(6);
+    }
+
+    @Test
+    public void wrapsAroundTheEndOfTheRing() throws Exception {
+        final SpillFile spill = new SpillFile(file, 16, clock);
+        write(spill, "a 1 1\nb 1 2\n");
+        spill.commit(spill.read(new byte[6]));
+        write(spill, "c 1 3\n");
+
+        assertThat(read(spill)).isEqualTo("b 1 2\nc 1 3\n");
+        assertThat(spill.getBytesEvicted()).isZero();
+    }
+
+    @Test
+    public void limitsTheReplayRate() throws Exception {
+        final SpillFile spill = new SpillFile(file, 64, clock);
+        spill.setReplayRate(12);
+        write(spill, "a 1 1\nb 1 2\nc 1 3\n");
+        final byte[] buffer = new byte[64];
+
+        spill.commit(spill.read(buffer));
+        assertThat(spill.getBytesReplayed()).isEqualTo(12);
+        assertThat(spill.read(buffer)).isZero();
+
+        when(clock.getTime()).thenReturn(500L);
+        spill.commit(spill.read(buffer));
+
+        assertThat(spill.getBytesReplayed()).isEqualTo(18);
+        assertThat(spill.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void replaysFailedLinesOnceTheServerIsBack() throws Exception {
+        final FlakyTransport transport = new FlakyTransport();
+        final OpenTSDB opentsdb = new OpenTSDB(transport);
+        opentsdb.setSpillFile(new SpillFile(file, 64, clock));
+
+        transport.failing = true;
+        try {
+            opentsdb.send("a", "1", 1);
+            opentsdb.flush();
+        } catch (IOException expected) {
+        }
+        transport.failing = false;
+        opentsdb.send("b", "2", 2);
+        opentsdb.flush();
+
+        assertThat(transport.bytes.toString("UTF-8")).isEqualTo("b 2 2\na 1 1\n");
+        assertThat(opentsdb.getSpillFile().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void spillsTheLinesAFailedFlushLeavesUnsent() throws Exception {
+        final HoldingTransport transport = new HoldingTransport();
+        final OpenTSDB opentsdb = new OpenTSDB(transport);
+        opentsdb.setSpillFile(new SpillFile(file, 64, clock));
+
+        transport.flushes = 0;
+        opentsdb.send("a", "1", 1);
+        try {
+            opentsdb.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expected) {
+        }
+        assertThat(opentsdb.getSpillFile().getSize()).isEqualTo(6);
+
+        transport.flushes = -1;
+        opentsdb.send("b", "2", 2);
+        opentsdb.flush();
+
+        assertThat(transport.sent.toString("UTF-8")).isEqualTo("b 2 2\na 1 1\n");
+        assertThat(opentsdb.getSpillFile().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void keepsReplayedLinesUntilTheyAreFlushed() throws Exception {
+        final HoldingTransport transport = new HoldingTransport();
+        final OpenTSDB opentsdb = new OpenTSDB(transport);
+        final SpillFile spill = new SpillFile(file, 64, clock);
+        write(spill, "a 1 1\n");
+        opentsdb.setSpillFile(spill);
+
+        // the report's lines are flushed, then the flush of the replayed lines fails
+        transport.flushes = 1;
+        opentsdb.send("b", "2", 2);
+        try {
+            opentsdb.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expected) {
+        }
+
+        assertThat(transport.sent.toString("UTF-8")).isEqualTo("b 2 2\n");
+        assertThat(read(spill)).isEqualTo("a 1 1\n");
+        assertThat(spill.getBytesReplayed()).isZero();
+    }
+
+    private static void write(SpillFile spill, String lines) {
+        final byte[] bytes = lines.getBytes(UTF_8);
+        spill.write(bytes, 0, bytes.length);
+    }
+
+    private static String read(SpillFile spill) {
+        final byte[] buffer = new byte[64];
+        return new String(buffer, 0, spill.read(buffer), UTF_8);
+    }
+
+    private static class FlakyTransport extends Transport {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private boolean failing;
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failing) {
+                throw new IOException("down");
+            }
+            bytes.write(b, off, len);
+        }
+    }
+
+    /**
+     * Holds the lines written until a flush, which fails once the given number of flushes has
+     * succeeded.
+     */
+    private static class HoldingTransport extends Transport {
+        private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        private int flushes = -1;
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            held.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            held.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (flushes == 0) {
+                throw new IOException("down");
+            }
+            if (flushes > 0) {
+                flushes--;
+            }
+            held.writeTo(sent);
+            held.reset();
+        }
+
+        @Override
+        public void spillUnsent(SpillFile spill) {
+            if (spill != null) {
+                spill.write(held.toByteArray(), 0, held.size());
+            }
+            held.reset();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import com.codahale.metrics.Clock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.failBecauseExceptionWasNotThrown;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TelnetOutputStreamTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Clock clock = mock(Clock.class);
+
+    private ServerSocket server;
+    private Socket accepted;
+    private TelnetOutputStream output;
+
+    @Before
+    public void setUp() throws Exception {
+        when(clock.getTime()).thenReturn(0L);
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(1000);
+        output = new TelnetOutputStream(new InetSocketAddress("127.0.0.1", server.getLocalPort()),
+                                        clock);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        output.close();
+        if (accepted != null) {
+            accepted.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void pipelinesAReportIntoOneWrite() throws Exception {
+        output.connect();
+        write("a 1 1 host=a\n");
+        write("b 1 2 host=a\n");
+        output.flush();
+        output.close();
+
+        assertThat(read()).isEqualTo("put a 1 1 host=a\nput b 1 2 host=a\n");
+        assertThat(output.getPacketsSent()).isEqualTo(1);
+    }
+
+    @Test
+    public void buffersLinesUntilTheTSDIsReachable() throws Exception {
+        final int port = server.getLocalPort();
+        server.close();
+
+        output.connect();
+        write("a 1 1 host=a\n");
+        try {
+            output.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expected) {
+            // the TSD is down
+        }
+
+        server = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(1000);
+        write("b 1 2 host=a\n");
+
+        // still backing off
+        try {
+            output.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expected) {
+            assertThat(expected.getMessage()).contains("until the next attempt");
+        }
+
+        when(clock.getTime()).thenReturn(TelnetOutputStream.DEFAULT_MIN_BACKOFF);
+        output.flush();
+        output.close();
+
+        assertThat(read()).isEqualTo("put a 1 1 host=a\nput b 1 2 host=a\n");
+    }
+
+    @Test
+    public void doublesTheBackoffOnEachFailure() throws Exception {
+        server.close();
+        output.setBackoff(100, 250);
+
+        write("a 1 1 host=a\n");
+        assertFlushFails();
+
+        when(clock.getTime()).thenReturn(100L);
+        assertFlushFails();
+
+        when(clock.getTime()).thenReturn(299L);
+        try {
+            output.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expected) {
+            assertThat(expected.getMessage()).contains("until the next attempt");
+        }
+
+        when(clock.getTime()).thenReturn(300L);
+        assertFlushFails();
+    }
+
+    @Test
+    public void dropsTheOldestLinesWhenTheBufferIsFull() throws Exception {
+        server.close();
+        output.setMaxBufferSize(40);
+
+        write("first 1 1 host=a\n");      // 21 bytes with put
+        write("second 1 2 host=a\n");     // 22 bytes with put
+
+        assertThat(output.getLinesDropped()).isEqualTo(1);
+    }
+
+    private void assertFlushFails() {
+        try {
+            output.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expected) {
+            assertThat(expected.getMessage()).doesNotContain("until the next attempt");
+        }
+    }
+
+    private void write(String s) throws Exception {
+        final byte[] bytes = s.getBytes(UTF_8);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private String read() throws Exception {
+        accepted = server.accept();
+        final InputStream in = accepted.getInputStream();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[256];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, read);
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+package com.stuartwarren.metrics.opentsdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class UDPOutputStreamTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private DatagramSocket receiver;
+    private UDPOutputStream output;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        receiver.setSoTimeout(1000);
+        output = new UDPOutputStream(InetAddress.getByName("127.0.0.1"), receiver.getLocalPort(), 32);
+        output.setLinePacking(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        output.close();
+        receiver.close();
+    }
+
+    @Test
+    public void packsWholeLinesIntoOneDatagram() throws Exception {
+        write("a 1 1\n");
+        write("b 1 2\n");
+        write("c 1 3\n");
+
+        assertThat(output.getPacketsSent()).isZero();
+
+        output.flush();
+
+        assertThat(receive()).isEqualTo("a 1 1\nb 1 2\nc 1 3\n");
+        assertThat(output.getPacketsSent()).isEqualTo(1);
+        assertThat(output.getBytesSent()).isEqualTo(18);
+    }
+
+    @Test
+    public void neverSplitsALineAcrossDatagrams() throws Exception {
+        write("metric.one 100 1\n");   // 17 bytes
+        write("metric.two 100 2\n");   // does not fit after the first line
+
+        assertThat(receive()).isEqualTo("metric.one 100 1\n");
+
+        output.flush();
+
+        assertThat(receive()).isEqualTo("metric.two 100 2\n");
+        assertThat(output.getPacketsSent()).isEqualTo(2);
+    }
+
+    @Test
+    public void carriesPartialLinesOverToTheNextDatagram() throws Exception {
+        write("metric.one 100 1\nmetric.t");
+        output.flush();
+
+        assertThat(receive()).isEqualTo("metric.one 100 1\n");
+
+        write("wo 100 2\n");
+        output.flush();
+
+        assertThat(receive()).isEqualTo("metric.two 100 2\n");
+    }
+
+    @Test
+    public void dropsLinesLongerThanTheBuffer() throws Exception {
+        write("a.very.long.metric.name.indeed 100 1\n");
+        write("short 100 1\n");
+        output.flush();
+
+        assertThat(receive()).isEqualTo("short 100 1\n");
+        assertThat(output.getLinesDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void pacesDatagramsToTheGivenRate() throws Exception {
+        output.setPacing(100, 0);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            write("a 1 " + i + "\n");
+            output.flush();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < 11; i++) {
+            assertThat(receive()).isEqualTo("a 1 " + i + "\n");
+        }
+        // a burst of a datagram or two goes straight out, the rest are 10ms apart
+        assertThat(elapsed).isGreaterThanOrEqualTo(80000000L);
+        assertThat(output.getPacingDelay()).isGreaterThanOrEqualTo(70000000L);
+    }
+
+    private void write(String s) throws Exception {
+        final byte[] bytes = s.getBytes(UTF_8);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private String receive() throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+        receiver.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+    }
+}